@@ -2,8 +2,10 @@ package com.serge.carrental;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class CarRentalApplication {
     public static void main(String[] args) {
         SpringApplication.run(CarRentalApplication.class, args);
@@ -5,10 +5,14 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.S3Configuration;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 import java.net.URI;
+import java.time.Duration;
 
 @Configuration
 public class S3Config {
@@ -21,6 +25,14 @@ public class S3Config {
     private String accessKey;
     @Value("${S3_SECRET_KEY:minioadmin}")
     private String secretKey;
+    // Endpoint clients use for presigned URLs, if storage is reachable under another host from outside
+    @Value("${S3_PUBLIC_ENDPOINT:${S3_ENDPOINT:http://localhost:9000}}")
+    private String publicEndpoint;
+    // Bounds concurrent S3 calls; with virtual threads requests queue here instead of on the Tomcat pool
+    @Value("${S3_MAX_CONNECTIONS:50}")
+    private int maxConnections;
+    @Value("${S3_CONNECTION_ACQUIRE_TIMEOUT:10s}")
+    private Duration connectionAcquireTimeout;
 
     @Bean
     public S3Client s3Client() {
@@ -29,6 +41,21 @@ public class S3Config {
                 .credentialsProvider(StaticCredentialsProvider.create(
                         AwsBasicCredentials.create(accessKey, secretKey)))
                 .region(Region.of(region))
+                .httpClientBuilder(ApacheHttpClient.builder()
+                        .maxConnections(maxConnections)
+                        .connectionAcquisitionTimeout(connectionAcquireTimeout))
+                .build();
+    }
+
+    @Bean
+    public S3Presigner s3Presigner() {
+        return S3Presigner.builder()
+                .endpointOverride(URI.create(publicEndpoint))
+                .credentialsProvider(StaticCredentialsProvider.create(
+                        AwsBasicCredentials.create(accessKey, secretKey)))
+                .region(Region.of(region))
+                // MinIO serves buckets by path, not as virtual hosts
+                .serviceConfiguration(S3Configuration.builder().pathStyleAccessEnabled(true).build())
                 .build();
     }
 }
@@ -36,8 +36,12 @@ public class HttpLoggingFilter extends OncePerRequestFilter {
         long start = System.currentTimeMillis();
 
         // Wrap to ensure status and body copying is safe (we don't log bodies here).
-        ContentCachingRequestWrapper req = new ContentCachingRequestWrapper(request);
-        ContentCachingResponseWrapper resp = new ContentCachingResponseWrapper(response);
+        // Event streams and exports are passed through untouched: a caching wrapper would hold the body back
+        // (and in memory) until the response ends.
+        // Multipart bodies (license images) are never logged, so they aren't cached in memory either.
+        boolean streaming = isEventStream(request);
+        HttpServletRequest req = streaming || isMultipart(request) ? request : new ContentCachingRequestWrapper(request);
+        HttpServletResponse resp = streaming ? response : new ContentCachingResponseWrapper(response);
         try {
             filterChain.doFilter(req, resp);
         } catch (Exception e){
@@ -70,13 +74,14 @@ public class HttpLoggingFilter extends OncePerRequestFilter {
                         idem,
                         baseUrl);
 
-                if (log.isDebugEnabled()) {
+                if (log.isDebugEnabled() && req instanceof ContentCachingRequestWrapper cachedReq
+                        && resp instanceof ContentCachingResponseWrapper cachedResp) {
 
                     String reqCt = Optional.ofNullable(req.getContentType()).orElse("");
                     String respCt = Optional.ofNullable(resp.getContentType()).orElse("");
 
                     if (isTextual(reqCt)) {
-                        String body = toDisplayString(req.getContentAsByteArray(),
+                        String body = toDisplayString(cachedReq.getContentAsByteArray(),
                                 charsetOrUtf8(req.getCharacterEncoding()));
                         if (!body.isEmpty()) {
                             log.debug("http.request.body {}: {}", reqCt, body);
@@ -84,7 +89,7 @@ public class HttpLoggingFilter extends OncePerRequestFilter {
                     }
 
                     if (isTextual(respCt)) {
-                        String body = toDisplayString(resp.getContentAsByteArray(),
+                        String body = toDisplayString(cachedResp.getContentAsByteArray(),
                                 charsetOrUtf8(resp.getCharacterEncoding()));
                         if (!body.isEmpty()) {
                             log.debug("http.response.body {}: {}", respCt, body);
@@ -92,7 +97,9 @@ public class HttpLoggingFilter extends OncePerRequestFilter {
                     }
                 }
                 // Important: write cached body back to the real response
-                resp.copyBodyToResponse();
+                if (resp instanceof ContentCachingResponseWrapper cachedResp) {
+                    cachedResp.copyBodyToResponse();
+                }
             } catch (Exception e){
                 log.error("Error in logging processor", e);
                 throw e;
@@ -118,6 +125,18 @@ public class HttpLoggingFilter extends OncePerRequestFilter {
         if (bytes.length > MAX_LOG_BYTES) s += "…(truncated)";
         return s;
     }
+    private static boolean isEventStream(HttpServletRequest request) {
+        String accept = request.getHeader("Accept");
+        return (accept != null && accept.contains(MediaType.TEXT_EVENT_STREAM_VALUE))
+                || request.getRequestURI().endsWith("/stream")
+                || request.getRequestURI().endsWith("/export");
+    }
+
+    private static boolean isMultipart(HttpServletRequest request) {
+        String ct = request.getContentType();
+        return ct != null && ct.toLowerCase().startsWith(MediaType.MULTIPART_FORM_DATA_VALUE);
+    }
+
     private static boolean isTextual(String contentType) {
         if (StringUtils.isNotBlank(contentType)) {
 
@@ -0,0 +1,109 @@
+package com.serge.carrental.config.threads;
+
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reports where virtual threads get pinned to their carrier (blocking inside {@code synchronized} or native
+ * frames, e.g. in a driver), which serializes them on the few carrier threads. Listens to the JFR
+ * {@code jdk.VirtualThreadPinned} event in-process, groups events by the innermost application or library frame,
+ * and periodically logs the worst sites. Only runs when virtual threads are enabled.
+ */
+@Component
+public class VirtualThreadPinningMonitor {
+    private static final Logger log = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+    private static final int REPORTED_SITES = 10;
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+    // Pins shorter than this are not recorded
+    @Value("${VIRTUAL_THREAD_PINNED_THRESHOLD:20ms}")
+    private Duration threshold;
+
+    private final Map<String, Site> sites = new ConcurrentHashMap<>();
+    private volatile RecordingStream stream;
+
+    private static final class Site {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!virtualThreads) return;
+        try {
+            RecordingStream rs = new RecordingStream();
+            rs.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+            rs.onEvent("jdk.VirtualThreadPinned", this::record);
+            rs.startAsync();
+            stream = rs;
+            log.info("threads.pinning.monitor_started threshold_ms={}", threshold.toMillis());
+        } catch (Exception e) {
+            log.warn("threads.pinning.monitor_failed err={}", e.toString());
+        }
+    }
+
+    private void record(RecordedEvent e) {
+        Site site = sites.computeIfAbsent(site(e), k -> new Site());
+        long nanos = e.getDuration().toNanos();
+        site.count.incrementAndGet();
+        site.totalNanos.addAndGet(nanos);
+        site.maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    // Innermost frame outside the JDK: the code that blocked while holding a monitor
+    private static String site(RecordedEvent e) {
+        if (e.getStackTrace() == null) return "unknown";
+        for (RecordedFrame f : e.getStackTrace().getFrames()) {
+            String type = f.getMethod().getType().getName();
+            if (!type.startsWith("java.") && !type.startsWith("jdk.") && !type.startsWith("sun.")) {
+                return type + "." + f.getMethod().getName() + ":" + f.getLineNumber();
+            }
+        }
+        RecordedFrame top = e.getStackTrace().getFrames().get(0);
+        return top.getMethod().getType().getName() + "." + top.getMethod().getName();
+    }
+
+    /** Pinning sites, most total pinned time first. */
+    public List<Map<String, Object>> hotspots() {
+        List<Map<String, Object>> out = new ArrayList<>();
+        sites.forEach((name, s) -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("site", name);
+            m.put("count", s.count.get());
+            m.put("totalMs", s.totalNanos.get() / 1_000_000);
+            m.put("maxMs", s.maxNanos.get() / 1_000_000);
+            out.add(m);
+        });
+        out.sort(Comparator.comparingLong((Map<String, Object> m) -> (Long) m.get("totalMs")).reversed());
+        return out;
+    }
+
+    @Scheduled(initialDelayString = "${VIRTUAL_THREAD_PINNING_REPORT_MS:60000}",
+               fixedDelayString = "${VIRTUAL_THREAD_PINNING_REPORT_MS:60000}")
+    public void report() {
+        if (stream == null || sites.isEmpty()) return;
+        hotspots().stream().limit(REPORTED_SITES).forEach(h ->
+                log.warn("threads.pinned site={} count={} total_ms={} max_ms={}", h.get("site"), h.get("count"), h.get("totalMs"), h.get("maxMs")));
+    }
+
+    @PreDestroy
+    void stop() {
+        if (stream != null) stream.close();
+    }
+}
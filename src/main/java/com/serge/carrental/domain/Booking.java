@@ -57,6 +57,10 @@ public class Booking {
     @Column(name = "car_registration_number")
     private String carRegistrationNumber;
 
+    /** Set while the booking is HELD. */
+    @Column(name = "hold_expires_at")
+    private OffsetDateTime holdExpiresAt;
+
     @Column(name = "created_at", nullable = false)
     private OffsetDateTime createdAt;
     @Column(name = "updated_at", nullable = false)
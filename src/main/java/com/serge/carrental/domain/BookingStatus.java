@@ -1,10 +1,18 @@
 package com.serge.carrental.domain;
 
 public enum BookingStatus {
+    /** Capacity reserved without a license yet; becomes TO_CONFIRM when one is attached, EXPIRED otherwise. */
+    HELD,
     TO_CONFIRM,
     BOOKED,
     OCCUPIED,
     FINISHED,
     REJECTED,
-    CANCELLED
+    CANCELLED,
+    EXPIRED;
+
+    /** Statuses that hold a car of the type for the booking window. */
+    public boolean isActive() {
+        return this == HELD || this == TO_CONFIRM || this == BOOKED || this == OCCUPIED;
+    }
 }
@@ -0,0 +1,40 @@
+package com.serge.carrental.domain;
+
+import jakarta.persistence.*;
+import lombok.*;
+
+import java.io.Serializable;
+import java.time.OffsetDateTime;
+
+/**
+ * One hour of one car type in the capacity ledger: how many cars of the type active bookings hold during it.
+ */
+@Entity
+@Table(name = "capacity_ledger")
+@IdClass(CapacitySlot.Key.class)
+@Getter @Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Builder
+public class CapacitySlot {
+    @Id
+    @Column(name = "type_id", length = 20)
+    private String typeId;
+
+    @Id
+    @Column(name = "slot_start")
+    private OffsetDateTime slotStart;
+
+    @Column(nullable = false)
+    private Integer used;
+
+    @Data
+    @NoArgsConstructor
+    @AllArgsConstructor
+    public static class Key implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private String typeId;
+        private OffsetDateTime slotStart;
+    }
+}
@@ -0,0 +1,112 @@
+package com.serge.carrental.repo;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Admin booking listing: bookings overlapping a window, newest first, with the user and car type columns
+ * joined in the same query. Paged by keyset on {@code (created_at, id)}, served by {@code bookings_admin_list_idx}.
+ * {@link #forEach} reads the same rows through a server-side cursor for exports.
+ */
+@Repository
+@RequiredArgsConstructor
+public class AdminBookingQueries {
+    private final JdbcTemplate jdbc;
+
+    @Value("${BOOKING_EXPORT_FETCH_SIZE:1000}")
+    private int exportFetchSize;
+
+    public record Row(UUID id, String status, String userEmail, String userPhone, String typeId,
+                      OffsetDateTime start, OffsetDateTime end, String licenseKey, String carRegistrationNumber,
+                      int days, BigDecimal pricePerDay, BigDecimal total, OffsetDateTime createdAt) {}
+
+    /** Position after a row in listing order. */
+    public record Cursor(OffsetDateTime createdAt, UUID id) {}
+
+    static final String SELECT = """
+            SELECT b.id, b.status, u.email, u.phone, c.id AS type_id, b.start_ts, b.end_ts, b.license_key,
+                   b.car_registration_number, b.days, b.price_per_day, b.total, b.created_at
+            FROM bookings b
+            JOIN users u ON u.id = b.user_id
+            JOIN car_types c ON c.id = b.type_id
+            WHERE (CAST(? AS VARCHAR) IS NULL OR b.status = ?)
+              AND b.start_ts < ? AND b.end_ts > ?
+            """;
+
+    static final RowMapper<Row> ROW = (rs, i) -> new Row(
+            rs.getObject("id", UUID.class),
+            rs.getString("status"),
+            rs.getString("email"),
+            rs.getString("phone"),
+            rs.getString("type_id"),
+            utc(rs.getObject("start_ts", LocalDateTime.class)),
+            utc(rs.getObject("end_ts", LocalDateTime.class)),
+            rs.getString("license_key"),
+            rs.getString("car_registration_number"),
+            rs.getInt("days"),
+            rs.getBigDecimal("price_per_day"),
+            rs.getBigDecimal("total"),
+            utc(rs.getObject("created_at", LocalDateTime.class)));
+
+    /** Up to {@code limit} rows after {@code after} (null for the first page). */
+    public List<Row> page(String status, OffsetDateTime from, OffsetDateTime to, Cursor after, int limit) {
+        List<Object> args = new ArrayList<>(windowArgs(status, from, to));
+        StringBuilder sql = new StringBuilder(SELECT);
+        if (after != null) {
+            sql.append("  AND (b.created_at, b.id) < (?, ?)\n");
+            args.add(local(after.createdAt()));
+            args.add(after.id());
+        }
+        sql.append("ORDER BY b.created_at DESC, b.id DESC\nLIMIT ?");
+        args.add(limit);
+        return jdbc.query(sql.toString(), ROW, args.toArray());
+    }
+
+    /**
+     * Passes every matching row, oldest first, to {@code handler} while reading them {@code BOOKING_EXPORT_FETCH_SIZE}
+     * at a time from a forward-only cursor, so memory use does not depend on the number of rows. Postgres only
+     * opens a cursor inside a transaction, hence the read-only one around the scan.
+     */
+    @Transactional(readOnly = true)
+    public void forEach(String status, OffsetDateTime from, OffsetDateTime to, Consumer<Row> handler) {
+        JdbcTemplate cursor = new JdbcTemplate(Objects.requireNonNull(jdbc.getDataSource()));
+        cursor.setFetchSize(exportFetchSize);
+        int[] n = {0};
+        cursor.query(SELECT + "ORDER BY b.created_at, b.id",
+                (RowCallbackHandler) rs -> handler.accept(ROW.mapRow(rs, n[0]++)),
+                windowArgs(status, from, to).toArray());
+    }
+
+    static List<Object> windowArgs(String status, OffsetDateTime from, OffsetDateTime to) {
+        List<Object> args = new ArrayList<>();
+        args.add(status);
+        args.add(status);
+        args.add(local(to));
+        args.add(local(from));
+        return args;
+    }
+
+    // Timestamps are stored as UTC wall time (timestamp without time zone)
+    static LocalDateTime local(OffsetDateTime t) {
+        return t.withOffsetSameInstant(ZoneOffset.UTC).toLocalDateTime();
+    }
+
+    static OffsetDateTime utc(LocalDateTime t) {
+        return t == null ? null : t.atOffset(ZoneOffset.UTC);
+    }
+}
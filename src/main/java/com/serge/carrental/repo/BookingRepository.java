@@ -2,7 +2,9 @@ package com.serge.carrental.repo;
 
 import com.serge.carrental.domain.Booking;
 import com.serge.carrental.domain.BookingStatus;
+import jakarta.persistence.LockModeType;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
@@ -10,6 +12,7 @@ import org.springframework.data.repository.query.Param;
 import java.time.OffsetDateTime;
 import java.math.BigDecimal;
 import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
 
 public interface BookingRepository extends JpaRepository<Booking, UUID> {
@@ -27,52 +30,92 @@ public interface BookingRepository extends JpaRepository<Booking, UUID> {
                           @Param("statuses") List<String> statuses);
 
     @Query(value = """
-        SELECT * FROM bookings b
-        WHERE (:status IS NULL OR b.status = :status)
-          AND b.start_ts < :toTs AND b.end_ts > :fromTs
-        ORDER BY b.created_at DESC
+        SELECT b.type_id AS "typeId", COUNT(*) AS "overlapping"
+        FROM bookings b
+        WHERE b.status IN (:statuses)
+          AND b.time_range && tsrange(:fromTs, :toTs, '[)')
+        GROUP BY b.type_id
+        """, nativeQuery = true)
+    List<TypeCount> countOverlappingByType(@Param("fromTs") OffsetDateTime fromTs,
+                                           @Param("toTs") OffsetDateTime toTs,
+                                           @Param("statuses") List<String> statuses);
+
+    @Query(value = """
+        SELECT d.n AS "dayIndex", COUNT(b.id) AS "overlapping"
+        FROM generate_series(0, :days - 1) AS d(n)
+        LEFT JOIN bookings b
+          ON b.type_id = :typeId
+         AND b.status IN (:statuses)
+         AND b.time_range && tsrange(CAST(:fromTs AS timestamp) + d.n * interval '1 day',
+                                     CAST(:fromTs AS timestamp) + (d.n + 1) * interval '1 day', '[)')
+        GROUP BY d.n
+        ORDER BY d.n
         """, nativeQuery = true)
-    List<Booking> findForAdmin(@Param("status") String status,
-                               @Param("fromTs") OffsetDateTime fromTs,
-                               @Param("toTs") OffsetDateTime toTs);
+    List<DayCount> countOverlappingPerDay(@Param("typeId") String typeId,
+                                          @Param("fromTs") OffsetDateTime fromTs,
+                                          @Param("days") int days,
+                                          @Param("statuses") List<String> statuses);
+
+    @Query(value = """
+        SELECT b.type_id AS "typeId", h.n AS "hourIndex", COUNT(*) AS "overlapping"
+        FROM generate_series(0, :hours - 1) AS h(n)
+        JOIN bookings b
+          ON b.type_id IN (:typeIds)
+         AND b.status IN (:statuses)
+         AND b.time_range && tsrange(CAST(:fromTs AS timestamp) + h.n * interval '1 hour',
+                                     CAST(:fromTs AS timestamp) + (h.n + 1) * interval '1 hour', '[)')
+        GROUP BY b.type_id, h.n
+        """, nativeQuery = true)
+    List<HourCount> countOverlappingPerHour(@Param("typeIds") List<String> typeIds,
+                                            @Param("fromTs") OffsetDateTime fromTs,
+                                            @Param("hours") int hours,
+                                            @Param("statuses") List<String> statuses);
+
+    /** Spans of bookings in {@code statuses}, plus those of any status updated at or after {@code since}. */
+    @Query("""
+        SELECT new com.serge.carrental.repo.BookingSpan(b.id, b.carType.id, b.startTs, b.endTs, b.status)
+        FROM Booking b
+        WHERE b.status IN (:statuses) OR b.updatedAt >= :since
+        """)
+    List<BookingSpan> findSpansByStatusInOrUpdatedSince(@Param("statuses") List<BookingStatus> statuses,
+                                                        @Param("since") OffsetDateTime since);
+
+    /**
+     * The booking with its row locked until the transaction ends, so a status change decided on the status read
+     * here can't race another writer (e.g. the hold sweeper, which skips locked rows).
+     */
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT b FROM Booking b WHERE b.id = :id")
+    Optional<Booking> findByIdForUpdate(@Param("id") UUID id);
 
     List<Booking> findByStatusAndStartTsBeforeAndEndTsAfter(BookingStatus status, OffsetDateTime now1, OffsetDateTime now2);
 
     /**
-     * Atomic CAS insert: inserts a booking row only if overlapping active bookings
-     * are still below the car type's total_quantity. Returns 1 on success, 0 if no capacity.
+     * Inserts a booking row. Capacity must already have been taken in the capacity ledger
+     * within the same transaction.
      */
     @Modifying
     @Query(value = """
-        
         INSERT INTO bookings (id, user_id, type_id, status, time_range, start_ts, end_ts,
                               days, price_per_day, total, license_key, car_registration_number,
-                              created_at, updated_at)
-        SELECT :id, :userId, :typeId, :status,
-               tsrange(:fromTs, :toTs, '[)'), :fromTs, :toTs,
-               :days, :pricePerDay, :total, :licenseKey, NULL,
-               :createdAt, :updatedAt
-     
-        WHERE (
-          SELECT COUNT(*)
-          FROM bookings b
-          WHERE b.type_id = :typeId
-            AND b.status IN (:statuses)
-            AND b.time_range && tsrange(:fromTs, :toTs, '[)')
-        ) < (SELECT c.total_quantity FROM car_types c WHERE c.id = :typeId FOR SHARE)
+                              hold_expires_at, created_at, updated_at)
+        VALUES (:id, :userId, :typeId, :status,
+                tsrange(:fromTs, :toTs, '[)'), :fromTs, :toTs,
+                :days, :pricePerDay, :total, :licenseKey, NULL,
+                :holdExpiresAt, :createdAt, :updatedAt)
         """, nativeQuery = true)
-    int tryInsertBooking(@Param("id") UUID id,
-                         @Param("userId") UUID userId,
-                         @Param("typeId") String typeId,
-                         @Param("status") String status,
-                         @Param("fromTs") OffsetDateTime fromTs,
-                         @Param("toTs") OffsetDateTime toTs,
-                         @Param("days") int days,
-                         @Param("pricePerDay") BigDecimal pricePerDay,
-                         @Param("total") BigDecimal total,
-                         @Param("licenseKey") String licenseKey,
-                         @Param("createdAt") OffsetDateTime createdAt,
-                         @Param("updatedAt") OffsetDateTime updatedAt,
-                         @Param("statuses") List<String> statuses);
+    int insertBooking(@Param("id") UUID id,
+                      @Param("userId") UUID userId,
+                      @Param("typeId") String typeId,
+                      @Param("status") String status,
+                      @Param("fromTs") OffsetDateTime fromTs,
+                      @Param("toTs") OffsetDateTime toTs,
+                      @Param("days") int days,
+                      @Param("pricePerDay") BigDecimal pricePerDay,
+                      @Param("total") BigDecimal total,
+                      @Param("licenseKey") String licenseKey,
+                      @Param("holdExpiresAt") OffsetDateTime holdExpiresAt,
+                      @Param("createdAt") OffsetDateTime createdAt,
+                      @Param("updatedAt") OffsetDateTime updatedAt);
 
 }
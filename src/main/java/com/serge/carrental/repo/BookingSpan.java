@@ -0,0 +1,12 @@
+package com.serge.carrental.repo;
+
+import com.serge.carrental.domain.BookingStatus;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Minimal projection of a booking's occupancy: which booking, which type, for which window and in which status.
+ */
+public record BookingSpan(UUID id, String typeId, OffsetDateTime startTs, OffsetDateTime endTs, BookingStatus status) {
+}
@@ -0,0 +1,66 @@
+package com.serge.carrental.repo;
+
+import com.serge.carrental.domain.CapacitySlot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.OffsetDateTime;
+
+public interface CapacityLedgerRepository extends JpaRepository<CapacitySlot, CapacitySlot.Key> {
+
+    /** Creates the missing hourly slots covering [fromTs, toTs) with nothing used yet. */
+    @Modifying
+    @Query(value = """
+        INSERT INTO capacity_ledger (type_id, slot_start, used)
+        SELECT :typeId, s.slot_start, 0
+        FROM generate_series(date_trunc('hour', CAST(:fromTs AS timestamp)),
+                             CAST(:toTs AS timestamp) - interval '1 microsecond', interval '1 hour') AS s(slot_start)
+        ON CONFLICT DO NOTHING
+        """, nativeQuery = true)
+    int ensureSlots(@Param("typeId") String typeId,
+                    @Param("fromTs") OffsetDateTime fromTs,
+                    @Param("toTs") OffsetDateTime toTs);
+
+    /**
+     * All-or-nothing admission: locks the slots covering [fromTs, toTs) in slot order and takes one unit
+     * of each only if none of them is already at the type's total_quantity.
+     * Returns the number of slots taken, i.e. either all of them or 0.
+     */
+    @Modifying
+    @Query(value = """
+        WITH locked AS (
+          SELECT l.used
+          FROM capacity_ledger l
+          WHERE l.type_id = :typeId
+            AND l.slot_start >= date_trunc('hour', CAST(:fromTs AS timestamp))
+            AND l.slot_start < CAST(:toTs AS timestamp)
+          ORDER BY l.slot_start
+          FOR UPDATE
+        )
+        UPDATE capacity_ledger l
+        SET used = l.used + 1
+        WHERE l.type_id = :typeId
+          AND l.slot_start >= date_trunc('hour', CAST(:fromTs AS timestamp))
+          AND l.slot_start < CAST(:toTs AS timestamp)
+          AND (SELECT MAX(used) FROM locked) < (SELECT c.total_quantity FROM car_types c WHERE c.id = :typeId)
+        """, nativeQuery = true)
+    int reserve(@Param("typeId") String typeId,
+                @Param("fromTs") OffsetDateTime fromTs,
+                @Param("toTs") OffsetDateTime toTs);
+
+    /** Gives back one unit of each slot covering [fromTs, toTs). */
+    @Modifying
+    @Query(value = """
+        UPDATE capacity_ledger l
+        SET used = l.used - 1
+        WHERE l.type_id = :typeId
+          AND l.slot_start >= date_trunc('hour', CAST(:fromTs AS timestamp))
+          AND l.slot_start < CAST(:toTs AS timestamp)
+          AND l.used > 0
+        """, nativeQuery = true)
+    int release(@Param("typeId") String typeId,
+                @Param("fromTs") OffsetDateTime fromTs,
+                @Param("toTs") OffsetDateTime toTs);
+}
@@ -0,0 +1,9 @@
+package com.serge.carrental.repo;
+
+/**
+ * Per-day count projection; {@code dayIndex} is the 0-based offset from the range start.
+ */
+public interface DayCount {
+    Integer getDayIndex();
+    Long getOverlapping();
+}
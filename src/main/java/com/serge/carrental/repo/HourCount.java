@@ -0,0 +1,10 @@
+package com.serge.carrental.repo;
+
+/**
+ * Per-type, per-hour count projection; {@code hourIndex} is the 0-based offset from the range start.
+ */
+public interface HourCount {
+    String getTypeId();
+    Integer getHourIndex();
+    Long getOverlapping();
+}
@@ -0,0 +1,23 @@
+package com.serge.carrental.repo;
+
+import com.serge.carrental.domain.OutboxEmail;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.OffsetDateTime;
+import java.util.List;
+import java.util.UUID;
+
+public interface OutboxEmailRepository extends JpaRepository<OutboxEmail, UUID> {
+
+    /** Locks up to {@code limit} due emails; rows locked by another relay are skipped, not waited for. */
+    @Query(value = """
+        SELECT * FROM email_outbox o
+        WHERE o.status = 'PENDING' AND o.next_attempt_at <= :now
+        ORDER BY o.next_attempt_at
+        LIMIT :limit
+        FOR UPDATE SKIP LOCKED
+        """, nativeQuery = true)
+    List<OutboxEmail> claimDue(@Param("now") OffsetDateTime now, @Param("limit") int limit);
+}
@@ -0,0 +1,9 @@
+package com.serge.carrental.repo;
+
+/**
+ * Per-type count projection for grouped native queries.
+ */
+public interface TypeCount {
+    String getTypeId();
+    Long getOverlapping();
+}
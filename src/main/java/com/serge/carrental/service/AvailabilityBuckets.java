@@ -0,0 +1,263 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.BookingStatus;
+import com.serge.carrental.repo.BookingRepository;
+import com.serge.carrental.repo.HourCount;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hourly occupancy buckets shared by all availability lookups. For each type and UTC day the Redis hash
+ * {@code availH:{typeId}:{epochDay}} maps hour-of-day (0-23) to the number of active bookings overlapping that hour.
+ * A window is answered as the max over the hours it covers, so searches starting at 10:00 and 10:05 read the same
+ * entries, and a booking write adjusts only the hours it touches instead of orphaning every cached window.
+ * <p>
+ * Days are materialized from Postgres on first use. A materialization is discarded if the type's generation or its
+ * count of applied changes moved while it was computed, so a booking change committed meanwhile is never lost. A change
+ * committed just before the query but applied after the day was stored is already in its counts, so applying it again
+ * would count it twice (over-reporting availability for a cancel). Changes applied within
+ * {@code AVAILABILITY_BUCKET_APPLY_GRACE} of a day's materialization therefore drop the day, to be recomputed,
+ * instead of adjusting it; the grace only needs to exceed the delay between a commit and its after-commit apply.
+ * Each day also stores its compute time and expiry for probabilistic early recomputation (XFetch).
+ */
+@Component
+@RequiredArgsConstructor
+public class AvailabilityBuckets {
+    private static final Logger log = LoggerFactory.getLogger(AvailabilityBuckets.class);
+    static final long HOUR_MS = Duration.ofHours(1).toMillis();
+    private static final int HOURS_PER_DAY = 24;
+    private static final List<String> ACTIVE_STATUSES =
+            Arrays.stream(BookingStatus.values()).filter(BookingStatus::isActive).map(Enum::name).toList();
+
+    // KEYS[1]: type's applied-changes counter, KEYS[2..]: day hashes. ARGV[1]: delta, ARGV[2]: grace ms,
+    // ARGV[i + 1]: "first:last" hours of KEYS[i]. Days not materialized are left alone, days materialized within the
+    // grace are dropped.
+    private static final RedisScript<Long> APPLY = new DefaultRedisScript<>("""
+            redis.call('INCR', KEYS[1])
+            local t = redis.call('TIME')
+            local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+            for i = 2, #KEYS do
+              local key = KEYS[i]
+              if redis.call('EXISTS', key) == 1 then
+                local m = tonumber(redis.call('HGET', key, 'm') or '0')
+                if now - m < tonumber(ARGV[2]) then
+                  redis.call('DEL', key)
+                else
+                  local first, last = string.match(ARGV[i + 1], '(%d+):(%d+)')
+                  for h = tonumber(first), tonumber(last) do
+                    redis.call('HINCRBY', key, h, ARGV[1])
+                  end
+                end
+              end
+            end
+            return 0
+            """, Long.class);
+
+    // KEYS[1]: type generation, KEYS[2]: type's applied-changes counter, KEYS[3..]: day hashes. ARGV[1], ARGV[2]: their
+    // values when the counts were read, ARGV[3]: TTL seconds, ARGV[4]: compute ms, ARGV[5]: expiry (epoch ms),
+    // ARGV[i + 3]: comma-separated hourly counts of KEYS[i]. Each day also records when it was stored ('m').
+    private static final RedisScript<Long> MATERIALIZE = new DefaultRedisScript<>("""
+            if (redis.call('GET', KEYS[1]) or '0') ~= ARGV[1] then return 0 end
+            if (redis.call('GET', KEYS[2]) or '0') ~= ARGV[2] then return 0 end
+            local t = redis.call('TIME')
+            local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000)
+            for i = 3, #KEYS do
+              redis.call('DEL', KEYS[i])
+              local h = 0
+              for c in string.gmatch(ARGV[i + 3], '[^,]+') do
+                redis.call('HSET', KEYS[i], h, c)
+                h = h + 1
+              end
+              redis.call('HSET', KEYS[i], 'd', ARGV[4], 'x', ARGV[5], 'm', now)
+              redis.call('EXPIRE', KEYS[i], ARGV[3])
+            end
+            return 1
+            """, Long.class);
+
+    private final StringRedisTemplate redis;
+    private final BookingRepository bookingRepository;
+
+    @Value("${AVAILABILITY_BUCKET_TTL:6h}")
+    private Duration ttl;
+    // Longer windows skip the buckets and are answered from the occupancy index directly
+    @Value("${AVAILABILITY_BUCKET_MAX_DAYS:62}")
+    private int maxDays;
+    @Value("${AVAILABILITY_EARLY_RECOMPUTE_BETA:1.0}")
+    private double earlyRecomputeBeta;
+    @Value("${AVAILABILITY_BUCKET_APPLY_GRACE:30s}")
+    private Duration applyGrace;
+
+    /** Whether windows of this many hours are served from buckets. */
+    public boolean covers(long hours) {
+        return hours > 0 && hours <= (long) maxDays * HOURS_PER_DAY;
+    }
+
+    /**
+     * Booking counts per hour for hours [fromHour, fromHour + hours) since the epoch, for each type,
+     * or {@code null} if Redis could not be read. Missing days of all types are loaded with one query.
+     */
+    public Map<String, int[]> hourly(Collection<String> typeIds, long fromHour, int hours) {
+        List<String> types = List.copyOf(new LinkedHashSet<>(typeIds));
+        long firstDay = Math.floorDiv(fromHour, HOURS_PER_DAY);
+        long lastDay = Math.floorDiv(fromHour + hours - 1, HOURS_PER_DAY);
+        int days = (int) (lastDay - firstDay + 1);
+
+        List<Object> raw;
+        try {
+            // One round trip: each type's generation and applied-changes count (to guard materialization), then its day hashes
+            raw = redis.executePipelined((RedisCallback<Object>) c -> {
+                StringRedisConnection sc = (StringRedisConnection) c;
+                for (String typeId : types) {
+                    sc.get(AvailabilityGenerations.typeKey(typeId));
+                    sc.get(appliedKey(typeId));
+                    for (long day = firstDay; day <= lastDay; day++) sc.hGetAll(key(typeId, day));
+                }
+                return null;
+            });
+        } catch (Exception e) {
+            log.warn("availability.buckets.read_failed types={} days={} err={}", types.size(), days, e.toString());
+            return null;
+        }
+
+        Map<String, int[]> out = new LinkedHashMap<>();
+        Map<String, List<String>> generationAtRead = new HashMap<>();
+        Map<String, List<Long>> missing = new LinkedHashMap<>();
+        Iterator<Object> it = raw.iterator();
+        for (String typeId : types) {
+            Object g = it.next();
+            Object a = it.next();
+            generationAtRead.put(typeId, List.of(g == null ? "0" : String.valueOf(g), a == null ? "0" : String.valueOf(a)));
+            int[] counts = new int[hours];
+            for (long day = firstDay; day <= lastDay; day++) {
+                Map<?, ?> hash = (Map<?, ?>) it.next();
+                if (hash == null || hash.isEmpty() || expiresEarly(hash)) {
+                    missing.computeIfAbsent(typeId, k -> new ArrayList<>()).add(day);
+                    continue;
+                }
+                for (int h = 0; h < HOURS_PER_DAY; h++) {
+                    Object v = hash.get(String.valueOf(h));
+                    if (v != null) set(counts, fromHour, day * HOURS_PER_DAY + h, Integer.parseInt(String.valueOf(v)));
+                }
+            }
+            out.put(typeId, counts);
+        }
+        if (!missing.isEmpty()) {
+            materialize(missing, generationAtRead, out, fromHour);
+        }
+        return out;
+    }
+
+    private void materialize(Map<String, List<Long>> missing, Map<String, List<String>> generationAtRead,
+                             Map<String, int[]> out, long fromHour) {
+        long firstDay = missing.values().stream().flatMap(List::stream).min(Long::compare).orElseThrow();
+        long lastDay = missing.values().stream().flatMap(List::stream).max(Long::compare).orElseThrow();
+        int hours = (int) (lastDay - firstDay + 1) * HOURS_PER_DAY;
+        long started = System.nanoTime();
+        Map<String, int[]> loaded = new HashMap<>();
+        for (HourCount hc : bookingRepository.countOverlappingPerHour(
+                new ArrayList<>(missing.keySet()), hourStart(firstDay * HOURS_PER_DAY), hours, ACTIVE_STATUSES)) {
+            loaded.computeIfAbsent(hc.getTypeId(), k -> new int[hours])[hc.getHourIndex()] = hc.getOverlapping().intValue();
+        }
+        long deltaMs = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+        long expiresAt = System.currentTimeMillis() + ttl.toMillis();
+
+        missing.forEach((typeId, days) -> {
+            int[] span = loaded.getOrDefault(typeId, new int[hours]);
+            List<String> keys = new ArrayList<>();
+            List<String> args = new ArrayList<>(generationAtRead.get(typeId));
+            args.addAll(List.of(Long.toString(ttl.toSeconds()), Long.toString(deltaMs), Long.toString(expiresAt)));
+            keys.add(AvailabilityGenerations.typeKey(typeId));
+            keys.add(appliedKey(typeId));
+            for (long day : days) {
+                StringJoiner counts = new StringJoiner(",");
+                for (int h = 0; h < HOURS_PER_DAY; h++) {
+                    long hour = day * HOURS_PER_DAY + h;
+                    int count = span[(int) (hour - firstDay * HOURS_PER_DAY)];
+                    set(out.get(typeId), fromHour, hour, count);
+                    counts.add(Integer.toString(count));
+                }
+                keys.add(key(typeId, day));
+                args.add(counts.toString());
+            }
+            try {
+                Long stored = redis.execute(MATERIALIZE, keys, args.toArray());
+                log.trace("availability.buckets.materialize typeId={} days={} stored={}", typeId, days.size(), stored);
+            } catch (Exception e) {
+                log.warn("availability.buckets.write_failed typeId={} days={} err={}", typeId, days.size(), e.toString());
+            }
+        });
+        log.debug("availability.buckets.miss types={} hours={} duration_ms={}", missing.size(), hours, deltaMs);
+    }
+
+    /**
+     * Adds {@code delta} to every hour bucket [from, to) overlaps, on the days that are currently materialized
+     * (dropping those materialized within {@code AVAILABILITY_BUCKET_APPLY_GRACE}).
+     */
+    public void apply(String typeId, long fromMillis, long toMillis, int delta) {
+        if (delta == 0 || fromMillis >= toMillis) return;
+        long first = Math.floorDiv(fromMillis, HOUR_MS);
+        long last = Math.ceilDiv(toMillis, HOUR_MS) - 1;
+        List<String> keys = new ArrayList<>(List.of(appliedKey(typeId)));
+        List<String> args = new ArrayList<>(List.of(Integer.toString(delta), Long.toString(applyGrace.toMillis())));
+        for (long day = Math.floorDiv(first, HOURS_PER_DAY); day <= Math.floorDiv(last, HOURS_PER_DAY); day++) {
+            long dayStart = day * HOURS_PER_DAY;
+            keys.add(key(typeId, day));
+            args.add(Math.max(first, dayStart) - dayStart + ":" + (Math.min(last, dayStart + HOURS_PER_DAY - 1) - dayStart));
+        }
+        try {
+            redis.execute(APPLY, keys, args.toArray());
+        } catch (Exception e) {
+            // The affected days are corrected when they expire
+            log.warn("availability.buckets.apply_failed typeId={} days={} err={}", typeId, keys.size() - 1, e.toString());
+        }
+    }
+
+    // XFetch: recompute once now - deltaMs * beta * ln(rand) passes the expiry, more likely the closer it is
+    private boolean expiresEarly(Map<?, ?> hash) {
+        Object d = hash.get("d");
+        Object x = hash.get("x");
+        if (d == null || x == null || earlyRecomputeBeta <= 0) return false;
+        double gap = Long.parseLong(String.valueOf(d)) * earlyRecomputeBeta * -Math.log(ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= Long.parseLong(String.valueOf(x));
+    }
+
+    private static void set(int[] counts, long fromHour, long hour, int count) {
+        long i = hour - fromHour;
+        if (i >= 0 && i < counts.length) counts[(int) i] = count;
+    }
+
+    private static String appliedKey(String typeId) {
+        return "availA:" + typeId;
+    }
+
+    private static String key(String typeId, long epochDay) {
+        return "availH:%s:%d".formatted(typeId, epochDay);
+    }
+
+    public static long floorHour(OffsetDateTime t) {
+        return Math.floorDiv(t.toInstant().toEpochMilli(), HOUR_MS);
+    }
+
+    public static long ceilHour(OffsetDateTime t) {
+        return Math.ceilDiv(t.toInstant().toEpochMilli(), HOUR_MS);
+    }
+
+    public static OffsetDateTime hourStart(long hour) {
+        return Instant.ofEpochMilli(hour * HOUR_MS).atOffset(ZoneOffset.UTC);
+    }
+}
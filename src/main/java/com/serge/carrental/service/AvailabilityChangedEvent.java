@@ -0,0 +1,12 @@
+package com.serge.carrental.service;
+
+/**
+ * Availability of a car type may have changed on any node.
+ * {@code fromMillis}/{@code toMillis} bound the affected window; both are 0 when unknown.
+ */
+public record AvailabilityChangedEvent(String typeId, long fromMillis, long toMillis) {
+
+    public boolean affects(long from, long to) {
+        return (fromMillis == 0 && toMillis == 0) || (fromMillis < to && toMillis > from);
+    }
+}
@@ -0,0 +1,175 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Redis generation counters used to version availability cache keys.
+ * Bumping a type's generation orphans every cached entry for that type in O(1),
+ * without scanning keys; orphaned entries simply expire with their TTL.
+ * A global generation is bumped alongside and versions the all-types entries.
+ * <p>
+ * Generations are also remembered locally so that L1 hits need no network I/O.
+ * Every bump is published on {@link #CHANNEL} together with the booking change, which lets
+ * other nodes advance their local generations and apply the change to their {@link OccupancyIndex}.
+ * Each received message (including this node's own) is re-published locally as an {@link AvailabilityChangedEvent}.
+ */
+@Component
+@RequiredArgsConstructor
+public class AvailabilityGenerations implements MessageListener {
+    private static final Logger log = LoggerFactory.getLogger(AvailabilityGenerations.class);
+    static final String GLOBAL_KEY = "availGen";
+    static final String CHANNEL = "availability:changes";
+
+    // KEYS: type gen, global gen, channel. ARGV[1]: change payload. Returns {typeGen, globalGen}.
+    @SuppressWarnings("rawtypes")
+    private static final RedisScript<List> BUMP = new DefaultRedisScript<>("""
+            local t = redis.call('INCR', KEYS[1])
+            local g = redis.call('INCR', KEYS[2])
+            redis.call('PUBLISH', KEYS[3], ARGV[1] .. '|' .. t .. '|' .. g)
+            return {t, g}
+            """, List.class);
+
+    private final StringRedisTemplate redis;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final OccupancyIndex occupancyIndex;
+    private final ApplicationEventPublisher events;
+
+    private final String nodeId = UUID.randomUUID().toString();
+    private final Map<String, Known> known = new ConcurrentHashMap<>();
+
+    // Safety net for lost pub/sub messages or a flushed Redis: local generations are re-read after this long
+    @Value("${AVAILABILITY_GENERATION_REFRESH:5s}")
+    private Duration refresh;
+
+    private record Known(long generation, long readAtNanos) {}
+
+    @PostConstruct
+    void subscribe() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(CHANNEL));
+    }
+
+    /** Current generation of the type, or -1 if Redis could not be read (callers then skip caching). */
+    public long forType(String typeId) {
+        return read(typeKey(typeId));
+    }
+
+    /**
+     * Current generations of the types, -1 for those that could not be read. Types not known locally are read
+     * with a single MGET, so a cold node pays one round trip however many types there are.
+     */
+    public Map<String, Long> forTypes(Collection<String> typeIds) {
+        Map<String, Long> out = new HashMap<>();
+        List<String> stale = new ArrayList<>();
+        for (String typeId : new LinkedHashSet<>(typeIds)) {
+            Known k = known.get(typeKey(typeId));
+            if (k != null && System.nanoTime() - k.readAtNanos() < refresh.toNanos()) out.put(typeId, k.generation());
+            else stale.add(typeId);
+        }
+        if (stale.isEmpty()) return out;
+        try {
+            List<String> values = redis.opsForValue().multiGet(stale.stream().map(AvailabilityGenerations::typeKey).toList());
+            for (int i = 0; i < stale.size(); i++) {
+                String v = values == null ? null : values.get(i);
+                long generation = v == null ? 0 : Long.parseLong(v);
+                known.put(typeKey(stale.get(i)), new Known(generation, System.nanoTime()));
+                out.put(stale.get(i), generation);
+            }
+        } catch (Exception e) {
+            log.warn("availability.generation.read_failed types={} err={}", stale.size(), e.toString());
+            stale.forEach(typeId -> out.put(typeId, -1L));
+        }
+        return out;
+    }
+
+    /** Current global generation, or -1 if Redis could not be read. */
+    public long global() {
+        return read(GLOBAL_KEY);
+    }
+
+    public void bump(String typeId) {
+        bump(typeId, null, 0, 0, 0);
+    }
+
+    /** Bumps the type's generation and broadcasts the booking's occupancy change [from, to) x delta to other nodes. */
+    public void bump(String typeId, UUID bookingId, long fromMillis, long toMillis, int delta) {
+        String payload = String.join("|", nodeId, typeId, Long.toString(fromMillis), Long.toString(toMillis), Integer.toString(delta),
+                bookingId == null ? "" : bookingId.toString());
+        try {
+            List<?> gens = redis.execute(BUMP, List.of(typeKey(typeId), GLOBAL_KEY, CHANNEL), payload);
+            if (gens != null && gens.size() == 2) {
+                advance(typeKey(typeId), ((Number) gens.get(0)).longValue());
+                advance(GLOBAL_KEY, ((Number) gens.get(1)).longValue());
+            }
+            log.debug("availability.generation.bump typeId={} gens={}", typeId, gens);
+        } catch (Exception e) {
+            // Without a bump we can't trust local generations either
+            known.clear();
+            log.warn("availability.generation.bump_failed typeId={} err={}", typeId, e.toString());
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        try {
+            String[] p = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|");
+            String typeId = p[1];
+            int delta = Integer.parseInt(p[4]);
+            long from = Long.parseLong(p[2]);
+            long to = Long.parseLong(p[3]);
+            // Index first: once the generation moves, readers here cache what they compute from it
+            if (!nodeId.equals(p[0]) && delta != 0) {
+                occupancyIndex.applyRemote(p[5].isEmpty() ? null : UUID.fromString(p[5]), typeId, from, to, delta);
+            }
+            advance(typeKey(typeId), Long.parseLong(p[6]));
+            advance(GLOBAL_KEY, Long.parseLong(p[7]));
+            events.publishEvent(new AvailabilityChangedEvent(typeId, from, to));
+        } catch (Exception e) {
+            known.clear();
+            log.warn("availability.generation.message_failed err={}", e.toString());
+        }
+    }
+
+    private long read(String key) {
+        Known k = known.get(key);
+        if (k != null && System.nanoTime() - k.readAtNanos() < refresh.toNanos()) {
+            return k.generation();
+        }
+        try {
+            String v = redis.opsForValue().get(key);
+            long generation = v == null ? 0 : Long.parseLong(v);
+            known.put(key, new Known(generation, System.nanoTime()));
+            return generation;
+        } catch (Exception e) {
+            log.warn("availability.generation.read_failed key={} err={}", key, e.toString());
+            return -1;
+        }
+    }
+
+    // Generations only move forward, so a late message never rolls a newer value back
+    private void advance(String key, long generation) {
+        known.merge(key, new Known(generation, System.nanoTime()),
+                (old, neu) -> old.generation() >= neu.generation() ? old : neu);
+    }
+
+    static String typeKey(String typeId) {
+        return GLOBAL_KEY + ":" + typeId;
+    }
+}
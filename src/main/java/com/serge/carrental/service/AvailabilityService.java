@@ -2,18 +2,27 @@ package com.serge.carrental.service;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.BookingStatus;
 import com.serge.carrental.domain.CarType;
 import com.serge.carrental.repo.BookingRepository;
 import com.serge.carrental.repo.CarTypeRepository;
+import com.serge.carrental.repo.DayCount;
+import com.serge.carrental.repo.TypeCount;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.event.TransactionalEventListener;
 
 import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.stream.Collectors;
 
 @Service
 @RequiredArgsConstructor
@@ -21,90 +30,329 @@ public class AvailabilityService {
     private static final Logger log = LoggerFactory.getLogger(AvailabilityService.class);
     private final CarTypeRepository carTypeRepository;
     private final BookingRepository bookingRepository;
+    private final OccupancyIndex occupancyIndex;
+    private final AvailabilityGenerations generations;
+    private final LocalAvailabilityCache l1;
+    private final AvailabilityBuckets buckets;
     private final StringRedisTemplate redis;
 
-    private static final List<String> ACTIVE_STATUSES = List.of("TO_CONFIRM","BOOKED","OCCUPIED");
-    private static final Duration TTL = Duration.ofMinutes(5);
+    private static final List<String> ACTIVE_STATUSES =
+            Arrays.stream(BookingStatus.values()).filter(BookingStatus::isActive).map(Enum::name).toList();
 
-    private String key(String typeId, OffsetDateTime from, OffsetDateTime to) {
-        return "avail:%s:%d:%d".formatted(typeId, from.toInstant().toEpochMilli(), to.toInstant().toEpochMilli());
+    // Keys are versioned by generation, so writes invalidate explicitly and the TTL only bounds orphaned entries
+    @Value("${AVAILABILITY_CACHE_TTL:1h}")
+    private Duration ttl;
+
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+
+    // Windows are widened to whole UTC hours, so nearby searches share entries
+    private String key(String typeId, long generation, long fromHour, long toHour) {
+        return "avail:%s:g%d:%d:%d".formatted(typeId, generation, fromHour, toHour);
+    }
+
+    private String keyCalendar(String typeId, long generation, OffsetDateTime from, int days) {
+        return "availCal:%s:g%d:%d:%d".formatted(typeId, generation, from.toInstant().toEpochMilli(), days);
     }
 
-    private String keyAll(OffsetDateTime from, OffsetDateTime to) {
-        return "availAll:%d:%d".formatted(from.toInstant().toEpochMilli(), to.toInstant().toEpochMilli());
+    private String keyAll(long generation, long fromHour, long toHour) {
+        return "availAll:g%d:%d:%d".formatted(generation, fromHour, toHour);
     }
 
     @Transactional(readOnly = true)
     public Map<String, Integer> availabilityAll(OffsetDateTime from, OffsetDateTime to) {
         log.debug("availability.all from={} to={}", from, to);
-        String cacheKey = keyAll(from, to);
-
-        // 1) Try bulk cache (Redis HASH: typeId -> available)
-        try {
-            Map<Object, Object> cached = redis.opsForHash().entries(cacheKey);
-            if (cached != null && !cached.isEmpty()) {
-                Map<String, Integer> hit = new LinkedHashMap<>();
-                for (Map.Entry<Object, Object> e : cached.entrySet()) {
-                    hit.put(String.valueOf(e.getKey()), Integer.parseInt(String.valueOf(e.getValue())));
+        long generation = generations.global();
+        String cacheKey = keyAll(generation, AvailabilityBuckets.floorHour(from), AvailabilityBuckets.ceilHour(to));
+
+        // 1) Try L1, then the bulk cache (Redis HASH: typeId -> available)
+        if (generation >= 0) {
+            Map<String, Integer> local = l1.getAll(cacheKey);
+            if (local != null) {
+                log.trace("availability.all.l1.hit key={}", cacheKey);
+                return local;
+            }
+            try {
+                Map<Object, Object> cached = redis.opsForHash().entries(cacheKey);
+                if (cached != null && !cached.isEmpty()) {
+                    Map<String, Integer> hit = new LinkedHashMap<>();
+                    for (Map.Entry<Object, Object> e : cached.entrySet()) {
+                        hit.put(String.valueOf(e.getKey()), Integer.parseInt(String.valueOf(e.getValue())));
+                    }
+                    log.trace("availability.all.cache.hit key={} size={}", cacheKey, hit.size());
+                    l1.put(cacheKey, hit);
+                    return hit;
+                }
+            } catch (Exception e) {
+                log.warn("availability.all.cache.read_failed key={} err={}", cacheKey, e.toString());
+            }
+        }
+
+        // 2) Cache miss: resolve all types from the hour buckets; concurrent misses of the same window share one computation
+        Map<String, Integer> result = coalescer.run(cacheKey, () -> availabilityForTypes(carTypeRepository.findAll(), from, to));
+
+        // 3) Write L1 and bulk cache (best effort) with TTL
+        if (generation >= 0) {
+            l1.put(cacheKey, result);
+            try {
+                Map<String, String> toCache = new HashMap<>();
+                result.forEach((k, v) -> toCache.put(k, String.valueOf(v)));
+                if (!toCache.isEmpty()) {
+                    redis.executePipelined((RedisCallback<Object>) c -> {
+                        StringRedisConnection sc = (StringRedisConnection) c;
+                        sc.hMSet(cacheKey, toCache);
+                        sc.expire(cacheKey, ttl.toSeconds());
+                        return null;
+                    });
                 }
-                log.trace("availability.all.cache.hit key={} size={}", cacheKey, hit.size());
-                return hit;
+                log.trace("availability.all.cache.write key={} size={}", cacheKey, result.size());
+            } catch (Exception e) {
+                log.warn("availability.all.cache.write_failed key={} err={}", cacheKey, e.toString());
             }
-        } catch (Exception e) {
-            log.warn("availability.all.cache.read_failed key={} err={}", cacheKey, e.toString());
         }
+        return result;
+    }
 
-        // 2) Cache miss: compute using per-type (which itself caches per-type keys)
+    /**
+     * Availability of several types for one window with a constant number of round trips: one MGET of the
+     * generations not known locally, one pipelined read of the hour buckets and, for days not yet materialized,
+     * one grouped query.
+     */
+    @Transactional(readOnly = true)
+    public Map<String, Integer> availabilityForTypes(List<CarType> types, OffsetDateTime from, OffsetDateTime to) {
+        long fromHour = AvailabilityBuckets.floorHour(from);
+        long toHour = AvailabilityBuckets.ceilHour(to);
         Map<String, Integer> result = new LinkedHashMap<>();
-        for (CarType ct : carTypeRepository.findAll()) {
-            result.put(ct.getId(), availabilityForType(ct, from, to, false));
+        Map<String, String> keys = new HashMap<>();
+        List<CarType> misses = new ArrayList<>();
+        Map<String, Long> generationByType = generations.forTypes(types.stream().map(CarType::getId).toList());
+        for (CarType ct : types) {
+            long generation = generationByType.get(ct.getId());
+            String cacheKey = generation < 0 ? null : key(ct.getId(), generation, fromHour, toHour);
+            Integer local = cacheKey == null ? null : l1.getCount(cacheKey);
+            if (local != null) {
+                result.put(ct.getId(), local);
+            } else {
+                misses.add(ct);
+                if (cacheKey != null) keys.put(ct.getId(), cacheKey);
+            }
         }
 
-        // 3) Write bulk cache (best effort) with TTL
-        try {
-            Map<String, String> toCache = new HashMap<>();
-            result.forEach((k, v) -> toCache.put(k, String.valueOf(v)));
-            if (!toCache.isEmpty()) {
-                redis.opsForHash().putAll(cacheKey, toCache);
-                redis.expire(cacheKey, TTL);
+        if (!misses.isEmpty()) {
+            Map<String, Integer> computed = fromBuckets(misses, fromHour, toHour);
+            if (computed == null) {
+                computed = new HashMap<>();
+                Map<String, Long> occupied = occupied(misses, from, to);
+                for (CarType ct : misses) {
+                    computed.put(ct.getId(), Math.max(0, ct.getTotalQuantity() - occupied.getOrDefault(ct.getId(), 0L).intValue()));
+                }
+            } else {
+                computed.forEach((typeId, available) -> {
+                    String cacheKey = keys.get(typeId);
+                    if (cacheKey != null) l1.put(cacheKey, available);
+                });
             }
-            log.trace("availability.all.cache.write key={} size={}", cacheKey, result.size());
-        } catch (Exception e) {
-            log.warn("availability.all.cache.write_failed key={} err={}", cacheKey, e.toString());
+            result.putAll(computed);
+            log.trace("availability.types.miss from={} to={} computed={}", from, to, misses.size());
         }
-        return result;
+
+        // Preserve the callers' type order
+        Map<String, Integer> ordered = new LinkedHashMap<>();
+        for (CarType ct : types) ordered.put(ct.getId(), result.get(ct.getId()));
+        return ordered;
+    }
+
+    /** One window of a batch search and the types it asks for. */
+    public record Window(OffsetDateTime from, OffsetDateTime to, List<CarType> types) {}
+
+    /**
+     * Availability for many windows at once, in request order. Windows not in L1 are answered from
+     * a single pipelined read of the hour buckets spanning all of them (plus at most one grouped query
+     * for days not loaded yet); if that span is too long for buckets each window is resolved on its own.
+     */
+    @Transactional(readOnly = true)
+    public List<Map<String, Integer>> availabilityBatch(List<Window> windows) {
+        List<Map<String, Integer>> out = new ArrayList<>();
+        Map<String, Long> generation = generations.forTypes(
+                windows.stream().flatMap(w -> w.types().stream()).map(CarType::getId).toList());
+        Set<String> missedTypes = new LinkedHashSet<>();
+        long spanFrom = Long.MAX_VALUE;
+        long spanTo = Long.MIN_VALUE;
+        for (Window w : windows) {
+            long fromHour = AvailabilityBuckets.floorHour(w.from());
+            long toHour = AvailabilityBuckets.ceilHour(w.to());
+            Map<String, Integer> result = new LinkedHashMap<>();
+            for (CarType ct : w.types()) {
+                long g = generation.get(ct.getId());
+                Integer local = g < 0 ? null : l1.getCount(key(ct.getId(), g, fromHour, toHour));
+                result.put(ct.getId(), local);
+                if (local == null) {
+                    missedTypes.add(ct.getId());
+                    spanFrom = Math.min(spanFrom, fromHour);
+                    spanTo = Math.max(spanTo, toHour);
+                }
+            }
+            out.add(result);
+        }
+        if (missedTypes.isEmpty()) return out;
+
+        Map<String, int[]> hourly = buckets.covers(spanTo - spanFrom)
+                ? buckets.hourly(missedTypes, spanFrom, (int) (spanTo - spanFrom))
+                : null;
+        for (int i = 0; i < windows.size(); i++) {
+            Window w = windows.get(i);
+            Map<String, Integer> result = out.get(i);
+            if (!result.containsValue(null)) continue;
+            if (hourly == null) {
+                result.putAll(availabilityForTypes(w.types(), w.from(), w.to()));
+                continue;
+            }
+            long fromHour = AvailabilityBuckets.floorHour(w.from());
+            long toHour = AvailabilityBuckets.ceilHour(w.to());
+            for (CarType ct : w.types()) {
+                if (result.get(ct.getId()) != null) continue;
+                int[] counts = hourly.get(ct.getId());
+                int peak = 0;
+                for (long h = fromHour; h < toHour; h++) peak = Math.max(peak, counts[(int) (h - spanFrom)]);
+                int available = Math.max(0, ct.getTotalQuantity() - peak);
+                result.put(ct.getId(), available);
+                long g = generation.get(ct.getId());
+                if (g >= 0) l1.put(key(ct.getId(), g, fromHour, toHour), available);
+            }
+        }
+        log.debug("availability.batch windows={} types={} span_hours={}", windows.size(), missedTypes.size(), spanTo - spanFrom);
+        return out;
     }
 
     @Transactional(readOnly = true)
     public int availabilityForType(CarType type, OffsetDateTime from, OffsetDateTime to, boolean bypassCache) {
-        String cacheKey = key(type.getId(), from, to);
-        if (!bypassCache) {
+        long generation = generations.forType(type.getId());
+        long fromHour = AvailabilityBuckets.floorHour(from);
+        long toHour = AvailabilityBuckets.ceilHour(to);
+        String cacheKey = key(type.getId(), generation, fromHour, toHour);
+        if (!bypassCache && generation >= 0) {
+            Integer local = l1.getCount(cacheKey);
+            if (local != null) {
+                log.trace("availability.l1.hit typeId={} key={} value={}", type.getId(), cacheKey, local);
+                return local;
+            }
+            // Only one bucket read per key runs on this node; concurrent misses wait for its result
+            Integer available = coalescer.run(cacheKey, () -> {
+                Map<String, Integer> computed = fromBuckets(List.of(type), fromHour, toHour);
+                return computed == null ? null : computed.get(type.getId());
+            });
+            if (available != null) {
+                l1.put(cacheKey, available);
+                return available;
+            }
+        }
+        long overlapping = occupied(type, from, to);
+        int available = Math.max(0, type.getTotalQuantity() - (int) overlapping);
+        log.trace("availability.exact typeId={} from={} to={} overlapping={} total={} available={}",
+                type.getId(), from, to, overlapping, type.getTotalQuantity(), available);
+        return available;
+    }
+
+    /**
+     * Availability from the hour buckets: total minus the busiest hour of [fromHour, toHour).
+     * Returns null when the window is too long for buckets or Redis is unavailable; callers then compute it exactly.
+     */
+    private Map<String, Integer> fromBuckets(List<CarType> types, long fromHour, long toHour) {
+        if (!buckets.covers(toHour - fromHour)) return null;
+        Map<String, int[]> hourly = buckets.hourly(types.stream().map(CarType::getId).toList(), fromHour, (int) (toHour - fromHour));
+        if (hourly == null) return null;
+        Map<String, Integer> out = new HashMap<>();
+        for (CarType ct : types) {
+            int peak = Arrays.stream(hourly.get(ct.getId())).max().orElse(0);
+            out.put(ct.getId(), Math.max(0, ct.getTotalQuantity() - peak));
+        }
+        return out;
+    }
+
+    /**
+     * Per-day availability for {@code days} consecutive UTC days starting at {@code from},
+     * computed in one sweep (or one generate_series query while the index loads) and cached as a single value.
+     */
+    @Transactional(readOnly = true)
+    public int[] calendar(CarType type, OffsetDateTime from, int days) {
+        long generation = generations.forType(type.getId());
+        String cacheKey = keyCalendar(type.getId(), generation, from, days);
+        if (generation >= 0) {
             try {
                 String v = redis.opsForValue().get(cacheKey);
                 if (v != null) {
-                    log.trace("availability.cache.hit typeId={} key={} value={}", type.getId(), cacheKey, v);
-                    return Integer.parseInt(v);
+                    log.trace("availability.calendar.cache.hit typeId={} key={}", type.getId(), cacheKey);
+                    return Arrays.stream(v.split(",")).mapToInt(Integer::parseInt).toArray();
                 }
             } catch (Exception e) {
-                log.warn("availability.cache.read_failed typeId={} key={} err={}", type.getId(), cacheKey, e.toString());
+                log.warn("availability.calendar.cache.read_failed typeId={} key={} err={}", type.getId(), cacheKey, e.toString());
             }
         }
-        long overlapping = bookingRepository.countOverlapping(type.getId(), from, to, ACTIVE_STATUSES);
-        int available = Math.max(0, type.getTotalQuantity() - (int) overlapping);
-        try {
-            redis.opsForValue().set(cacheKey, String.valueOf(available), TTL);
-        } catch (Exception e) {
-            log.warn("availability.cache.write_failed typeId={} key={} err={}", type.getId(), cacheKey, e.toString());
+        int[] occupied;
+        if (occupancyIndex.isReady()) {
+            occupied = occupancyIndex.peaks(type.getId(), from, Duration.ofDays(1), days);
+        } else {
+            occupied = new int[days];
+            for (DayCount dc : bookingRepository.countOverlappingPerDay(type.getId(), from, days, ACTIVE_STATUSES)) {
+                occupied[dc.getDayIndex()] = dc.getOverlapping().intValue();
+            }
         }
-        log.trace("availability.cache.miss typeId={} from={} to={} overlapping={} total={} available={}",
-                type.getId(), from, to, overlapping, type.getTotalQuantity(), available);
+        int[] available = Arrays.stream(occupied).map(o -> Math.max(0, type.getTotalQuantity() - o)).toArray();
+        if (generation >= 0) {
+            try {
+                String v = Arrays.stream(available).mapToObj(String::valueOf).collect(Collectors.joining(","));
+                redis.opsForValue().set(cacheKey, v, ttl);
+            } catch (Exception e) {
+                log.warn("availability.calendar.cache.write_failed typeId={} key={} err={}", type.getId(), cacheKey, e.toString());
+            }
+        }
+        log.trace("availability.calendar.miss typeId={} from={} days={}", type.getId(), from, days);
         return available;
     }
 
+    /**
+     * Cars of the type in use during [from, to): the peak concurrency from the in-memory index,
+     * or the overlapping-bookings count from Postgres until the index has been loaded.
+     */
+    private long occupied(CarType type, OffsetDateTime from, OffsetDateTime to) {
+        if (occupancyIndex.isReady()) {
+            return occupancyIndex.peak(type.getId(), from, to);
+        }
+        return bookingRepository.countOverlapping(type.getId(), from, to, ACTIVE_STATUSES);
+    }
+
+    /**
+     * Adjusts the hour buckets the booking covers, then bumps the type's generation (and the global one),
+     * so every cached per-type and all-types entry is bypassed from now on. Runs after the booking transaction
+     * commits and after {@link OccupancyIndex#onBookingChanged} (ordered first), so a reader can't re-cache the
+     * pre-commit state or the index's pre-change state under the new generation.
+     */
+    @Order(1)
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookingChanged(BookingChangedEvent e) {
+        long from = e.start().toInstant().toEpochMilli();
+        long to = e.end().toInstant().toEpochMilli();
+        buckets.apply(e.typeId(), from, to, e.occupancyDelta());
+        generations.bump(e.typeId(), e.bookingId(), from, to, e.occupancyDelta());
+    }
+
+    public Map<String, Object> localCacheStats() {
+        return l1.stats();
+    }
+
+    private Map<String, Long> occupied(List<CarType> types, OffsetDateTime from, OffsetDateTime to) {
+        Map<String, Long> out = new HashMap<>();
+        if (occupancyIndex.isReady()) {
+            for (CarType ct : types) out.put(ct.getId(), (long) occupancyIndex.peak(ct.getId(), from, to));
+            return out;
+        }
+        for (TypeCount tc : bookingRepository.countOverlappingByType(from, to, ACTIVE_STATUSES)) {
+            out.put(tc.getTypeId(), tc.getOverlapping());
+        }
+        return out;
+    }
+
     public void invalidateAvailability(String typeId) {
-        // Simple strategy: delete keys by prefix (requires Redis KEYS). Safer production approach: publish/subscribe or versioned keys.
-        // Here we best-effort: do nothing, rely on TTL. Optionally, publish a "bump" version key.
-        // For explicit invalidation, we can delete known keys if stored; to keep it simple, we skip heavy KEYS operations.
+        generations.bump(typeId);
     }
 
     public static int daysBetweenCeil(OffsetDateTime from, OffsetDateTime to) {
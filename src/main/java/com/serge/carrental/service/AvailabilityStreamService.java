@@ -0,0 +1,222 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.CarType;
+import com.serge.carrental.repo.CarTypeRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Pushes availability to Server-Sent Events subscribers instead of having them poll /api/cars/search.
+ * Change notifications only mark car types dirty; a single compute thread recomputes each distinct (type, window)
+ * once, and a single dispatcher thread sends each subscriber only the types whose availability actually changed,
+ * plus the heartbeats. A slow Redis or database therefore delays updates, never keep-alives.
+ */
+@Service
+@RequiredArgsConstructor
+public class AvailabilityStreamService {
+    private static final Logger log = LoggerFactory.getLogger(AvailabilityStreamService.class);
+
+    private final AvailabilityService availabilityService;
+    private final CarTypeRepository carTypeRepository;
+
+    @Value("${AVAILABILITY_STREAM_MAX_SUBSCRIBERS:10000}")
+    private int maxSubscribers;
+    @Value("${AVAILABILITY_STREAM_TIMEOUT:30m}")
+    private Duration timeout;
+    // Changes arriving within this delay are pushed together
+    @Value("${AVAILABILITY_STREAM_DEBOUNCE_MS:200}")
+    private long debounceMs;
+    @Value("${AVAILABILITY_STREAM_HEARTBEAT_MS:25000}")
+    private long heartbeatMs;
+
+    // Sends and heartbeats only; never blocks on Redis or the database
+    private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "availability-stream");
+        t.setDaemon(true);
+        return t;
+    });
+    // Availability lookups, one at a time so their pushes reach the dispatcher in order
+    private final ScheduledExecutorService compute = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "availability-stream-compute");
+        t.setDaemon(true);
+        return t;
+    });
+    private final Set<Subscription> subscriptions = ConcurrentHashMap.newKeySet();
+    private final Queue<AvailabilityChangedEvent> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean();
+    private volatile ScheduledFuture<?> heartbeat;
+
+    private static final class Subscription {
+        final SseEmitter emitter;
+        final Set<String> typeIds;
+        final OffsetDateTime from;
+        final OffsetDateTime to;
+        final Map<String, Integer> lastSent = new HashMap<>();
+
+        Subscription(SseEmitter emitter, Set<String> typeIds, OffsetDateTime from, OffsetDateTime to) {
+            this.emitter = emitter;
+            this.typeIds = typeIds;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Opens a stream for the given types (all types when empty) and window. The first ("snapshot") event
+     * carries the full current availability; later "availability" events carry only changed types.
+     */
+    public SseEmitter subscribe(Collection<String> typeIds, OffsetDateTime from, OffsetDateTime to) {
+        Set<String> types = new LinkedHashSet<>(typeIds);
+        if (types.isEmpty()) {
+            carTypeRepository.findAll().forEach(ct -> types.add(ct.getId()));
+        }
+        SseEmitter emitter = newEmitter();
+        Subscription sub = new Subscription(emitter, types, from, to);
+        emitter.onCompletion(() -> subscriptions.remove(sub));
+        emitter.onTimeout(() -> subscriptions.remove(sub));
+        emitter.onError(e -> subscriptions.remove(sub));
+        subscriptions.add(sub);
+        startHeartbeat();
+        // Initial snapshot goes through the dispatcher as well, so sends to one emitter never race
+        compute.execute(() -> {
+            try {
+                Map<String, Integer> snapshot = current(sub.typeIds, sub.from, sub.to, typesById(), new HashMap<>());
+                dispatcher.execute(() -> push(sub, snapshot, true));
+            } catch (Exception e) {
+                log.warn("availability.stream.snapshot_failed types={} err={}", sub.typeIds, e.toString());
+                subscriptions.remove(sub);
+                emitter.completeWithError(e);
+            }
+        });
+        log.debug("availability.stream.subscribe types={} from={} to={} subscribers={}", types, from, to, subscriptions.size());
+        return emitter;
+    }
+
+    @EventListener
+    public void onAvailabilityChanged(AvailabilityChangedEvent e) {
+        if (subscriptions.isEmpty()) return;
+        pending.add(e);
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            compute.schedule(this::drain, debounceMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void drain() {
+        // Cleared before draining: anything queued from now on schedules the next round
+        dispatchScheduled.set(false);
+        List<AvailabilityChangedEvent> changes = new ArrayList<>();
+        for (AvailabilityChangedEvent e; (e = pending.poll()) != null; ) changes.add(e);
+        if (changes.isEmpty()) return;
+        try {
+            dispatch(changes);
+        } catch (Exception e) {
+            log.warn("availability.stream.dispatch_failed changes={} err={}", changes.size(), e.toString());
+        }
+    }
+
+    // Runs on the compute thread; only the sends go to the dispatcher
+    private void dispatch(List<AvailabilityChangedEvent> changes) {
+        Map<String, CarType> types = typesById();
+        // Availability of one (type, window) is computed once, however many subscribers share it
+        Map<String, Integer> computed = new HashMap<>();
+        for (Subscription sub : subscriptions) {
+            long from = sub.from.toInstant().toEpochMilli();
+            long to = sub.to.toInstant().toEpochMilli();
+            Set<String> dirty = new LinkedHashSet<>();
+            for (AvailabilityChangedEvent e : changes) {
+                if (sub.typeIds.contains(e.typeId()) && e.affects(from, to)) dirty.add(e.typeId());
+            }
+            if (!dirty.isEmpty()) {
+                Map<String, Integer> availability = current(dirty, sub.from, sub.to, types, computed);
+                dispatcher.execute(() -> push(sub, availability, false));
+            }
+        }
+    }
+
+    SseEmitter newEmitter() {
+        return new SseEmitter(timeout.toMillis());
+    }
+
+    private Map<String, CarType> typesById() {
+        Map<String, CarType> out = new HashMap<>();
+        carTypeRepository.findAll().forEach(ct -> out.put(ct.getId(), ct));
+        return out;
+    }
+
+    private Map<String, Integer> current(Set<String> typeIds, OffsetDateTime from, OffsetDateTime to,
+                                         Map<String, CarType> types, Map<String, Integer> computed) {
+        Map<String, Integer> out = new LinkedHashMap<>();
+        for (String typeId : typeIds) {
+            String memoKey = typeId + ":" + from.toInstant().toEpochMilli() + ":" + to.toInstant().toEpochMilli();
+            Integer available = computed.get(memoKey);
+            if (available == null) {
+                CarType ct = types.get(typeId);
+                if (ct == null) continue;
+                available = availabilityService.availabilityForType(ct, from, to, false);
+                computed.put(memoKey, available);
+            }
+            out.put(typeId, available);
+        }
+        return out;
+    }
+
+    private void push(Subscription sub, Map<String, Integer> availability, boolean snapshot) {
+        Map<String, Integer> delta = new LinkedHashMap<>();
+        availability.forEach((typeId, available) -> {
+            if (snapshot || !available.equals(sub.lastSent.get(typeId))) delta.put(typeId, available);
+        });
+        if (delta.isEmpty()) return;
+        Map<String, Object> data = new LinkedHashMap<>();
+        data.put("from", sub.from.toString());
+        data.put("to", sub.to.toString());
+        data.put("available", delta);
+        try {
+            sub.emitter.send(SseEmitter.event().name(snapshot ? "snapshot" : "availability").data(data));
+            sub.lastSent.putAll(delta);
+        } catch (IOException | IllegalStateException e) {
+            subscriptions.remove(sub);
+            log.debug("availability.stream.send_failed err={}", e.toString());
+        }
+    }
+
+    private void startHeartbeat() {
+        if (heartbeat != null) return;
+        synchronized (this) {
+            if (heartbeat != null) return;
+            // Comments keep proxies from closing idle streams and reveal dead connections
+            heartbeat = dispatcher.scheduleWithFixedDelay(() -> {
+                for (Subscription sub : subscriptions) {
+                    try {
+                        sub.emitter.send(SseEmitter.event().comment("keep-alive"));
+                    } catch (IOException | IllegalStateException e) {
+                        subscriptions.remove(sub);
+                    }
+                }
+            }, heartbeatMs, heartbeatMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public boolean acceptsSubscribers() {
+        return subscriptions.size() < maxSubscribers;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        subscriptions.forEach(s -> s.emitter.complete());
+        compute.shutdownNow();
+        dispatcher.shutdownNow();
+    }
+}
@@ -0,0 +1,134 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.OffsetDateTime;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Precomputes availability for the search windows users actually ask for, so that after a deploy or
+ * a Redis flush the first searches don't all fall through to Postgres.
+ * <p>
+ * A sample of searched windows (widened to whole hours) is counted in the Redis sorted set {@link #KEY},
+ * shared by all nodes. At startup and then periodically the most popular windows that haven't ended yet
+ * are recomputed on a small bounded pool; windows that don't fit in its queue are skipped until the next run.
+ */
+@Service
+@RequiredArgsConstructor
+public class AvailabilityWarmup {
+    private static final Logger log = LoggerFactory.getLogger(AvailabilityWarmup.class);
+    static final String KEY = "availWarm:windows";
+    // Less popular windows beyond this many are dropped from the sample
+    private static final int TRACKED_WINDOWS = 1000;
+
+    private final AvailabilityService availabilityService;
+    private final StringRedisTemplate redis;
+
+    @Value("${AVAILABILITY_WARMUP_SAMPLE_RATE:0.1}")
+    private double sampleRate;
+    @Value("${AVAILABILITY_WARMUP_TOP:50}")
+    private int top;
+    @Value("${AVAILABILITY_WARMUP_CONCURRENCY:2}")
+    private int concurrency;
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+
+    private volatile ThreadPoolExecutor executor;
+
+    /** Counts a searched window with probability {@code AVAILABILITY_WARMUP_SAMPLE_RATE}. */
+    public void record(OffsetDateTime from, OffsetDateTime to) {
+        if (ThreadLocalRandom.current().nextDouble() >= sampleRate) return;
+        String member = AvailabilityBuckets.floorHour(from) + ":" + AvailabilityBuckets.ceilHour(to);
+        try {
+            redis.opsForZSet().incrementScore(KEY, member, 1);
+        } catch (Exception e) {
+            log.debug("availability.warmup.record_failed err={}", e.toString());
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onStartup() {
+        warmUp();
+    }
+
+    @Scheduled(initialDelayString = "${AVAILABILITY_WARMUP_INTERVAL_MS:600000}",
+               fixedDelayString = "${AVAILABILITY_WARMUP_INTERVAL_MS:600000}")
+    public void warmUp() {
+        Set<String> windows;
+        long nowHour = AvailabilityBuckets.floorHour(OffsetDateTime.now());
+        try {
+            // Keep only the most searched windows; ended ones are dropped below as they come up
+            redis.opsForZSet().removeRange(KEY, 0, -TRACKED_WINDOWS - 1);
+            windows = redis.opsForZSet().reverseRange(KEY, 0, top - 1);
+        } catch (Exception e) {
+            log.warn("availability.warmup.read_failed err={}", e.toString());
+            return;
+        }
+        if (windows == null || windows.isEmpty()) return;
+
+        int submitted = 0;
+        ThreadPoolExecutor pool = executor();
+        for (String w : windows) {
+            String[] p = w.split(":");
+            long fromHour = Long.parseLong(p[0]);
+            long toHour = Long.parseLong(p[1]);
+            if (toHour <= nowHour) {
+                try {
+                    redis.opsForZSet().remove(KEY, w);
+                } catch (Exception e) {
+                    log.debug("availability.warmup.remove_failed window={} err={}", w, e.toString());
+                }
+                continue;
+            }
+            try {
+                pool.execute(() -> {
+                    try {
+                        availabilityService.availabilityAll(AvailabilityBuckets.hourStart(fromHour), AvailabilityBuckets.hourStart(toHour));
+                    } catch (Exception e) {
+                        log.debug("availability.warmup.window_failed window={} err={}", w, e.toString());
+                    }
+                });
+                submitted++;
+            } catch (RejectedExecutionException e) {
+                // Previous run still busy: leave the rest for the next one
+                break;
+            }
+        }
+        log.info("availability.warmup.scheduled windows={} submitted={}", windows.size(), submitted);
+    }
+
+    private ThreadPoolExecutor executor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    AtomicInteger n = new AtomicInteger();
+                    ThreadFactory threads = virtualThreads ? Thread.ofVirtual().name("availability-warmup-", 1).factory() : r -> {
+                        Thread t = new Thread(r, "availability-warmup-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    };
+                    executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(Math.max(1, top)), threads, new ThreadPoolExecutor.AbortPolicy());
+                    executor.allowCoreThreadTimeOut(true);
+                }
+            }
+        }
+        return executor;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor != null) executor.shutdownNow();
+    }
+}
@@ -0,0 +1,235 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.BookingStatus;
+import com.serge.carrental.repo.BookingRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Booking admission pipeline. Create requests are queued per car type and a single worker per type
+ * drains its queue in micro-batches: the batch's ledger slots are locked once, admissions are decided
+ * in memory in arrival order, and the ledger update and a multi-row booking insert commit in one
+ * transaction. Same-type requests therefore stop contending on the same ledger rows one by one,
+ * while the row locks still keep other nodes from overselling.
+ * <p>
+ * With {@code BOOKING_ADMISSION_BATCHING=false} each request is admitted on its own thread instead.
+ */
+@Service
+@RequiredArgsConstructor
+public class BookingAdmission {
+    private static final Logger log = LoggerFactory.getLogger(BookingAdmission.class);
+
+    private final CapacityLedger capacityLedger;
+    private final BookingRepository bookingRepository;
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final EmailOutbox emailOutbox;
+    private final IdempotencyService idempotencyService;
+    private final OccupancyIndex occupancyIndex;
+    private final UtilizationRollups utilizationRollups;
+
+    @Value("${BOOKING_ADMISSION_BATCHING:true}")
+    private boolean batching;
+    @Value("${BOOKING_ADMISSION_BATCH_MAX:64}")
+    private int batchMax;
+    @Value("${BOOKING_ADMISSION_WORKERS:4}")
+    private int workers;
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreads;
+    @Value("${BOOKING_ADMISSION_PRECHECK:true}")
+    private boolean precheck;
+
+    private final Map<String, Lane> lanes = new ConcurrentHashMap<>();
+    private volatile ExecutorService executor;
+
+    /**
+     * A booking to be admitted with status {@code status} ({@code holdExpiresAt} set for HELD); {@code notification}
+     * is queued and the {@code idempotency} key is recorded only if it is admitted. Both may be null.
+     */
+    public record NewBooking(UUID id, UUID userId, String typeId, String status,
+                             OffsetDateTime start, OffsetDateTime end, int days,
+                             BigDecimal pricePerDay, BigDecimal total, String licenseKey,
+                             OffsetDateTime holdExpiresAt, OffsetDateTime createdAt, EmailOutbox.Message notification,
+                             IdempotencyService.Claim idempotency) {}
+
+    private record Pending(NewBooking booking, CompletableFuture<Boolean> result) {}
+
+    private static final class Lane {
+        final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean draining = new AtomicBoolean();
+    }
+
+    /**
+     * Admission did not finish within the caller's timeout. If {@link #mayBeAdmitted()} is false the request was
+     * withdrawn from its queue and nothing was inserted; otherwise its batch was already running and may still commit.
+     */
+    public static class AdmissionTimeoutException extends RuntimeException {
+        private final boolean mayBeAdmitted;
+
+        AdmissionTimeoutException(String typeId, Duration timeout, boolean mayBeAdmitted) {
+            super("Admission for " + typeId + " did not finish within " + timeout);
+            this.mayBeAdmitted = mayBeAdmitted;
+        }
+
+        public boolean mayBeAdmitted() {
+            return mayBeAdmitted;
+        }
+    }
+
+    /**
+     * Inserts the booking if its type has a car free for every hour it covers. Returns false (nothing inserted)
+     * if not. The insert is committed by the time this returns, independently of the caller's transaction.
+     * Waits at most {@code timeout} for a batched admission, then throws {@link AdmissionTimeoutException}.
+     */
+    public boolean admit(NewBooking booking, Duration timeout) {
+        if (!batching) {
+            return Boolean.TRUE.equals(tx.execute(s -> admitOne(booking)));
+        }
+        Pending p = new Pending(booking, new CompletableFuture<>());
+        Lane lane = lanes.computeIfAbsent(booking.typeId(), k -> new Lane());
+        lane.queue.add(p);
+        schedule(lane);
+        try {
+            p.result().get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            // Still queued: no batch has seen it, so it is withdrawn. Otherwise its batch decides, however late.
+            boolean withdrawn = lane.queue.remove(p);
+            if (withdrawn || !p.result().isDone()) {
+                log.warn("bookings.admission.timeout typeId={} timeout_ms={} withdrawn={}", booking.typeId(), timeout.toMillis(), withdrawn);
+                throw new AdmissionTimeoutException(booking.typeId(), timeout, !withdrawn);
+            }
+        } catch (ExecutionException ignored) {
+            // Rethrown by join() below
+        }
+        try {
+            return p.result().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException re) throw re;
+            throw e;
+        }
+    }
+
+    /**
+     * Best-effort in-memory pre-check, run before the license upload: true if the occupancy index already has every
+     * car of the type in use at some instant of [start, end). The index is not the ledger: it may be ahead of it (a
+     * remote change applied before its transaction is visible here) or behind it, so a request refused here could
+     * occasionally have been admitted a moment later. Returns false (let admission decide) while the index loads.
+     */
+    public boolean certainlyFull(String typeId, int totalQuantity, OffsetDateTime start, OffsetDateTime end) {
+        if (!precheck || !occupancyIndex.isReady()) return false;
+        return occupancyIndex.peak(typeId, start, end) >= totalQuantity;
+    }
+
+    private boolean admitOne(NewBooking b) {
+        if (!capacityLedger.reserve(b.typeId(), b.start(), b.end())) return false;
+        bookingRepository.insertBooking(b.id(), b.userId(), b.typeId(), b.status(), b.start(), b.end(), b.days(),
+                b.pricePerDay(), b.total(), b.licenseKey(), b.holdExpiresAt(), b.createdAt(), b.createdAt());
+        utilizationRollups.apply(b.typeId(), b.start(), b.end(), b.total(), null, BookingStatus.valueOf(b.status()));
+        if (b.notification() != null) emailOutbox.enqueue(b.notification());
+        if (b.idempotency() != null) idempotencyService.recordAll(List.of(b.idempotency()), List.of(b.id()));
+        return true;
+    }
+
+    private void schedule(Lane lane) {
+        if (lane.draining.compareAndSet(false, true)) {
+            executor().execute(() -> drain(lane));
+        }
+    }
+
+    private void drain(Lane lane) {
+        try {
+            List<Pending> batch = new ArrayList<>();
+            for (Pending p; batch.size() < batchMax && (p = lane.queue.poll()) != null; ) batch.add(p);
+            if (!batch.isEmpty()) admitBatch(batch);
+        } finally {
+            lane.draining.set(false);
+            // Requests queued while this batch committed form the next one
+            if (!lane.queue.isEmpty()) schedule(lane);
+        }
+    }
+
+    private void admitBatch(List<Pending> batch) {
+        long started = System.nanoTime();
+        String typeId = batch.get(0).booking().typeId();
+        try {
+            boolean[] admitted = tx.execute(s -> {
+                boolean[] decided = capacityLedger.reserveAll(typeId,
+                        batch.stream().map(p -> new CapacityLedger.Span(p.booking().start(), p.booking().end())).toList());
+                List<NewBooking> rows = new ArrayList<>();
+                for (int i = 0; i < batch.size(); i++) {
+                    if (decided[i]) rows.add(batch.get(i).booking());
+                }
+                insertAll(rows);
+                utilizationRollups.applyAll(rows.stream()
+                        .map(b -> new UtilizationRollups.Change(b.typeId(), b.start(), b.end(), b.total(), null, BookingStatus.valueOf(b.status())))
+                        .toList());
+                emailOutbox.enqueueAll(rows.stream().map(NewBooking::notification).filter(Objects::nonNull).toList());
+                List<NewBooking> keyed = rows.stream().filter(b -> b.idempotency() != null).toList();
+                idempotencyService.recordAll(keyed.stream().map(NewBooking::idempotency).toList(),
+                        keyed.stream().map(NewBooking::id).toList());
+                return decided;
+            });
+            for (int i = 0; i < batch.size(); i++) batch.get(i).result().complete(admitted[i]);
+            log.debug("bookings.admission.batch typeId={} size={} duration_ms={}",
+                    typeId, batch.size(), (System.nanoTime() - started) / 1_000_000);
+        } catch (RuntimeException e) {
+            log.warn("bookings.admission.batch_failed typeId={} size={} err={}", typeId, batch.size(), e.toString());
+            batch.forEach(p -> p.result().completeExceptionally(e));
+        }
+    }
+
+    private void insertAll(List<NewBooking> rows) {
+        if (rows.isEmpty()) return;
+        StringBuilder sql = new StringBuilder("""
+                INSERT INTO bookings (id, user_id, type_id, status, time_range, start_ts, end_ts,
+                                      days, price_per_day, total, license_key, car_registration_number,
+                                      hold_expires_at, created_at, updated_at)
+                VALUES
+                """);
+        List<Object> args = new ArrayList<>();
+        for (int i = 0; i < rows.size(); i++) {
+            NewBooking b = rows.get(i);
+            sql.append(i == 0 ? "" : ",").append("(?, ?, ?, ?, tsrange(CAST(? AS timestamp), CAST(? AS timestamp), '[)'), ?, ?, ?, ?, ?, ?, NULL, CAST(? AS timestamp), ?, ?)");
+            Collections.addAll(args, b.id(), b.userId(), b.typeId(), b.status(), b.start(), b.end(), b.start(), b.end(),
+                    b.days(), b.pricePerDay(), b.total(), b.licenseKey(), b.holdExpiresAt(), b.createdAt(), b.createdAt());
+        }
+        jdbc.update(sql.toString(), args.toArray());
+    }
+
+    private ExecutorService executor() {
+        if (executor == null) {
+            synchronized (this) {
+                if (executor == null) {
+                    AtomicInteger n = new AtomicInteger();
+                    ThreadFactory threads = virtualThreads ? Thread.ofVirtual().name("booking-admission-", 1).factory() : r -> {
+                        Thread t = new Thread(r, "booking-admission-" + n.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    };
+                    executor = Executors.newFixedThreadPool(workers, threads);
+                }
+            }
+        }
+        return executor;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (executor != null) executor.shutdown();
+    }
+}
@@ -0,0 +1,25 @@
+package com.serge.carrental.service;
+
+import com.serge.carrental.domain.BookingStatus;
+
+import java.time.OffsetDateTime;
+import java.util.UUID;
+
+/**
+ * Published whenever a booking is created or changes status.
+ * {@code previousStatus} is null for newly created bookings.
+ */
+public record BookingChangedEvent(UUID bookingId,
+                                  String typeId,
+                                  OffsetDateTime start,
+                                  OffsetDateTime end,
+                                  BookingStatus previousStatus,
+                                  BookingStatus status) {
+
+    /** +1 if the change takes a car, -1 if it frees one, 0 otherwise. */
+    public int occupancyDelta() {
+        int before = previousStatus != null && previousStatus.isActive() ? 1 : 0;
+        int after = status != null && status.isActive() ? 1 : 0;
+        return after - before;
+    }
+}
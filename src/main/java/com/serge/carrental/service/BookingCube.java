@@ -0,0 +1,347 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.BookingStatus;
+import com.serge.carrental.domain.CarType;
+import com.serge.carrental.repo.CarTypeRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Node-local columnar snapshot of all bookings for ad-hoc admin analytics: one primitive array per column (start,
+ * end and creation time in epoch minutes, car type and status ordinals, total in cents), so a query is a parallel
+ * scan over a few hundred MB at most instead of a new SQL query. Loaded at startup, then refreshed every
+ * {@code ANALYTICS_REFRESH_MS} from the rows whose {@code updated_at} moved; bookings are never deleted.
+ * <p>
+ * A single writer appends and updates rows in place and publishes the new row count through a volatile
+ * {@link Snapshot}; scans read the arrays without locking, so a row updated during a scan may be seen half-changed.
+ */
+@Service
+@RequiredArgsConstructor
+public class BookingCube {
+    private static final Logger log = LoggerFactory.getLogger(BookingCube.class);
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final String SELECT = """
+            SELECT id, type_id, status, start_ts, end_ts, total, created_at, updated_at
+            FROM bookings
+            """;
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final CarTypeRepository carTypeRepository;
+
+    @Value("${ANALYTICS_CUBE_ENABLED:true}")
+    private boolean enabled;
+    @Value("${ANALYTICS_FETCH_SIZE:5000}")
+    private int fetchSize;
+    // Re-read window behind the newest updated_at seen, for transactions that commit out of timestamp order
+    @Value("${ANALYTICS_REFRESH_OVERLAP:2m}")
+    private Duration refreshOverlap;
+    @Value("${ANALYTICS_PARALLELISM:0}")
+    private int parallelism;
+
+    /** Grouping dimensions; time-of-day ones are UTC and taken from the booking start (or the hour, for occupancy). */
+    public enum Dimension {
+        TYPE("type"), STATUS("status"), WEEKDAY("weekday"), HOUR("hour"), MONTH("month"),
+        LEAD_DAYS("leadDays"), DURATION_DAYS("durationDays");
+
+        public final String key;
+
+        Dimension(String key) {
+            this.key = key;
+        }
+
+        public static Dimension of(String key) {
+            for (Dimension d : values()) if (d.key.equalsIgnoreCase(key)) return d;
+            throw new IllegalArgumentException("unknown dimension " + key);
+        }
+    }
+
+    /**
+     * BOOKINGS: per group of bookings, their count, hours (within the window if any), revenue and mean lead time.
+     * OCCUPANCY: booked hours spread over the UTC hours they cover and set against the fleet's hours, for
+     * utilization by weekday and hour; needs a window.
+     */
+    public enum Measure { BOOKINGS, OCCUPANCY }
+
+    /** Bookings overlapping [from, to) (both null for all), of the given types and statuses (empty for all). */
+    public record Query(List<Dimension> groupBy, Measure measure, OffsetDateTime from, OffsetDateTime to,
+                        Set<String> typeIds, Set<BookingStatus> statuses) {}
+
+    public record Result(int rows, OffsetDateTime asOf, long durationMs, List<Map<String, Object>> groups) {}
+
+    static final class Columns {
+        final long[] idHi;
+        final long[] idLo;
+        final int[] start;
+        final int[] end;
+        final int[] created;
+        final byte[] type;
+        final byte[] status;
+        final long[] cents;
+
+        Columns(int capacity) {
+            idHi = new long[capacity];
+            idLo = new long[capacity];
+            start = new int[capacity];
+            end = new int[capacity];
+            created = new int[capacity];
+            type = new byte[capacity];
+            status = new byte[capacity];
+            cents = new long[capacity];
+        }
+
+        int capacity() {
+            return start.length;
+        }
+
+        Columns grow(int size) {
+            Columns c = new Columns(capacity() * 2);
+            System.arraycopy(idHi, 0, c.idHi, 0, size);
+            System.arraycopy(idLo, 0, c.idLo, 0, size);
+            System.arraycopy(start, 0, c.start, 0, size);
+            System.arraycopy(end, 0, c.end, 0, size);
+            System.arraycopy(created, 0, c.created, 0, size);
+            System.arraycopy(type, 0, c.type, 0, size);
+            System.arraycopy(status, 0, c.status, 0, size);
+            System.arraycopy(cents, 0, c.cents, 0, size);
+            return c;
+        }
+    }
+
+    /** The first {@code size} rows of {@code columns}; {@code types} maps type ordinals to ids. */
+    record Snapshot(Columns columns, int size, List<String> types, OffsetDateTime asOf) {}
+
+    // Writer state, guarded by this
+    private Columns columns = new Columns(INITIAL_CAPACITY);
+    private int size;
+    private IdIndex index = new IdIndex(INITIAL_CAPACITY);
+    private final List<String> types = new ArrayList<>();
+    private final Map<String, Integer> typeOrdinals = new HashMap<>();
+    private LocalDateTime watermark;
+
+    private volatile Snapshot snapshot;
+    private volatile ForkJoinPool pool;
+
+    public boolean isReady() {
+        return snapshot != null;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        if (enabled) refresh();
+    }
+
+    /** Loads every booking on the first run (or after a failed one), then only those changed since the last. */
+    @Scheduled(initialDelayString = "${ANALYTICS_REFRESH_MS:10000}", fixedDelayString = "${ANALYTICS_REFRESH_MS:10000}")
+    public synchronized void refresh() {
+        if (!enabled) return;
+        long started = System.nanoTime();
+        boolean full = watermark == null;
+        try {
+            int[] read = {0};
+            LocalDateTime[] newest = {watermark};
+            JdbcTemplate cursor = new JdbcTemplate(Objects.requireNonNull(jdbc.getDataSource()));
+            cursor.setFetchSize(fetchSize);
+            RowCallbackHandler upsert = rs -> {
+                LocalDateTime updated = upsert(rs);
+                if (newest[0] == null || updated.isAfter(newest[0])) newest[0] = updated;
+                read[0]++;
+            };
+            // Postgres only streams with a cursor inside a transaction
+            tx.executeWithoutResult(s -> {
+                if (full) cursor.query(SELECT, upsert);
+                else cursor.query(SELECT + "WHERE updated_at > ?", upsert, watermark.minus(refreshOverlap));
+            });
+            // Only once every row up to it has been read: rows arrive in no particular order
+            watermark = newest[0];
+            snapshot = new Snapshot(columns, size, List.copyOf(types), OffsetDateTime.now(ZoneOffset.UTC));
+            if (full || read[0] > 0) {
+                log.info("analytics.cube.refresh full={} read={} rows={} duration_ms={}",
+                        full, read[0], size, (System.nanoTime() - started) / 1_000_000);
+            }
+        } catch (RuntimeException e) {
+            log.warn("analytics.cube.refresh_failed full={} err={}", full, e.toString());
+        }
+    }
+
+    /** Adds or overwrites the row of the booking at {@code rs}; returns its {@code updated_at}. */
+    private LocalDateTime upsert(ResultSet rs) throws SQLException {
+        UUID id = rs.getObject("id", UUID.class);
+        int row = index.find(columns, id.getMostSignificantBits(), id.getLeastSignificantBits());
+        if (row < 0) {
+            if (size == columns.capacity()) columns = columns.grow(size);
+            if (size + 1 > index.capacity() / 2) index = index.rehash(columns, size);
+            row = size++;
+            columns.idHi[row] = id.getMostSignificantBits();
+            columns.idLo[row] = id.getLeastSignificantBits();
+            index.put(columns, row);
+        }
+        BigDecimal total = rs.getBigDecimal("total");
+        columns.start[row] = minutes(rs.getObject("start_ts", LocalDateTime.class));
+        columns.end[row] = minutes(rs.getObject("end_ts", LocalDateTime.class));
+        columns.created[row] = minutes(rs.getObject("created_at", LocalDateTime.class));
+        columns.type[row] = (byte) typeOrdinal(rs.getString("type_id"));
+        columns.status[row] = (byte) BookingStatus.valueOf(rs.getString("status")).ordinal();
+        columns.cents[row] = total == null ? 0 : total.movePointRight(2).longValue();
+        return rs.getObject("updated_at", LocalDateTime.class);
+    }
+
+    private int typeOrdinal(String typeId) {
+        return typeOrdinals.computeIfAbsent(typeId, k -> {
+            if (types.size() == 256) throw new IllegalStateException("more than 256 car types");
+            types.add(k);
+            return types.size() - 1;
+        });
+    }
+
+    /** Runs {@code q} over the current snapshot. Throws IllegalStateException before the first load. */
+    public Result query(Query q) {
+        Snapshot s = snapshot;
+        if (s == null) throw new IllegalStateException("analytics snapshot not loaded");
+        if ((q.from() == null) != (q.to() == null)) throw new IllegalArgumentException("from and to go together");
+        if (q.from() != null && !q.from().isBefore(q.to())) throw new IllegalArgumentException("from must be before to");
+        if (q.measure() == Measure.OCCUPANCY && q.from() == null) throw new IllegalArgumentException("occupancy needs from and to");
+        if (q.measure() == Measure.OCCUPANCY && q.groupBy().contains(Dimension.MONTH))
+            throw new IllegalArgumentException("occupancy can't group by month");
+        if (new HashSet<>(q.groupBy()).size() != q.groupBy().size()) throw new IllegalArgumentException("repeated dimension");
+
+        long started = System.nanoTime();
+        boolean[] typeAllowed = null;
+        if (!q.typeIds().isEmpty()) {
+            typeAllowed = new boolean[256];
+            for (int t = 0; t < s.types().size(); t++) typeAllowed[t] = q.typeIds().contains(s.types().get(t));
+        }
+        int statusMask = 0;
+        for (BookingStatus st : q.statuses()) statusMask |= 1 << st.ordinal();
+        int from = q.from() == null ? Integer.MIN_VALUE : minutes(q.from());
+        int to = q.to() == null ? Integer.MAX_VALUE : minutes(q.to());
+
+        BookingCubeScan.Plan plan = new BookingCubeScan.Plan(q.groupBy(), q.measure() == Measure.OCCUPANCY,
+                Math.max(1, s.types().size()), typeAllowed, statusMask, from, to);
+        BookingCubeScan.Accumulator acc = pool().invoke(new BookingCubeScan(s.columns(), plan, 0, s.size(), chunk(s.size())));
+
+        Map<String, Integer> quantities = new HashMap<>();
+        for (CarType t : carTypeRepository.findAll()) {
+            if (q.typeIds().isEmpty() || q.typeIds().contains(t.getId())) quantities.put(t.getId(), t.getTotalQuantity());
+        }
+        int fleet = quantities.values().stream().mapToInt(Integer::intValue).sum();
+        long[] windowMinutes = plan.occupancy ? BookingCubeScan.minutesPerHourOfWeek(from, to) : null;
+
+        List<Map<String, Object>> groups = new ArrayList<>();
+        acc.forEach((key, m) -> {
+            Map<String, Object> g = new LinkedHashMap<>();
+            int[] v = plan.decode(key);
+            for (int d = 0; d < v.length; d++) g.put(q.groupBy().get(d).key, label(q.groupBy().get(d), v[d], s.types()));
+            if (plan.occupancy) {
+                int cars = plan.has(Dimension.TYPE) ? quantities.getOrDefault(s.types().get(v[plan.position(Dimension.TYPE)]), 0) : fleet;
+                double available = cars * plan.matchingMinutes(v, windowMinutes) / 60.0;
+                g.put("bookedHours", m[BookingCubeScan.MINUTES] / 60.0);
+                g.put("availableHours", available);
+                g.put("utilizationPercent", available == 0 ? 0 : m[BookingCubeScan.MINUTES] / 60.0 / available * 100.0);
+            } else {
+                g.put("bookings", m[BookingCubeScan.COUNT]);
+                g.put("bookedHours", m[BookingCubeScan.MINUTES] / 60.0);
+                g.put("revenue", BigDecimal.valueOf(m[BookingCubeScan.CENTS], 2));
+                g.put("avgLeadHours", m[BookingCubeScan.LEAD_MINUTES] / 60.0 / m[BookingCubeScan.COUNT]);
+            }
+            groups.add(g);
+        });
+        return new Result(s.size(), s.asOf(), (System.nanoTime() - started) / 1_000_000, groups);
+    }
+
+    private static Object label(Dimension d, int v, List<String> types) {
+        return switch (d) {
+            case TYPE -> types.get(v);
+            case STATUS -> BookingStatus.values()[v].name();
+            case WEEKDAY -> DayOfWeek.of(v + 1).name();
+            case MONTH -> YearMonth.of(Math.floorDiv(v, 12), Math.floorMod(v, 12) + 1).toString();
+            case HOUR, LEAD_DAYS, DURATION_DAYS -> v;
+        };
+    }
+
+    // About four leaves per worker: enough to balance the load, few enough accumulators to merge
+    private int chunk(int rows) {
+        return Math.max(1 << 15, rows / (pool().getParallelism() * 4) + 1);
+    }
+
+    private ForkJoinPool pool() {
+        if (pool == null) {
+            synchronized (this) {
+                if (pool == null) {
+                    pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+                }
+            }
+        }
+        return pool;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (pool != null) pool.shutdown();
+    }
+
+    static int minutes(LocalDateTime t) {
+        return (int) Math.floorDiv(t.toEpochSecond(ZoneOffset.UTC), 60);
+    }
+
+    static int minutes(OffsetDateTime t) {
+        return (int) Math.floorDiv(t.toEpochSecond(), 60);
+    }
+
+    /** Open-addressing map from booking id to row, keyed by the id columns themselves. */
+    static final class IdIndex {
+        private final int[] slots; // row + 1, 0 when free
+
+        IdIndex(int capacity) {
+            slots = new int[capacity];
+        }
+
+        int capacity() {
+            return slots.length;
+        }
+
+        int find(Columns c, long hi, long lo) {
+            int mask = slots.length - 1;
+            for (int i = hash(hi, lo) & mask; slots[i] != 0; i = (i + 1) & mask) {
+                int row = slots[i] - 1;
+                if (c.idHi[row] == hi && c.idLo[row] == lo) return row;
+            }
+            return -1;
+        }
+
+        void put(Columns c, int row) {
+            int mask = slots.length - 1;
+            int i = hash(c.idHi[row], c.idLo[row]) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = row + 1;
+        }
+
+        IdIndex rehash(Columns c, int rows) {
+            IdIndex bigger = new IdIndex(slots.length * 2);
+            for (int row = 0; row < rows; row++) bigger.put(c, row);
+            return bigger;
+        }
+
+        private static int hash(long hi, long lo) {
+            long h = (hi ^ lo) * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
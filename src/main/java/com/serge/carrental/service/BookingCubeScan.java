@@ -0,0 +1,296 @@
+package com.serge.carrental.service;
+
+import com.serge.carrental.domain.BookingStatus;
+import com.serge.carrental.service.BookingCube.Dimension;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiConsumer;
+
+/**
+ * Fork-join scan of a {@link BookingCube} snapshot: splits the rows into ranges, aggregates each range into its own
+ * {@link Accumulator} with no shared state, and merges the partial results pairwise on the way back up.
+ */
+final class BookingCubeScan extends RecursiveTask<BookingCubeScan.Accumulator> {
+    private static final long serialVersionUID = 1L;
+    static final int COUNT = 0, MINUTES = 1, CENTS = 2, LEAD_MINUTES = 3;
+    private static final int MEASURES = 4;
+    private static final int HOURS_PER_WEEK = 168;
+    // Group counts up to this are accumulated in flat arrays, larger ones in hash maps
+    private static final int DENSE_GROUPS = 1 << 16;
+    private static final int DAY_BUCKETS = 366;
+
+    private final transient BookingCube.Columns c;
+    private final transient Plan p;
+    private final int lo;
+    private final int hi;
+    private final int chunk;
+
+    BookingCubeScan(BookingCube.Columns columns, Plan plan, int lo, int hi, int chunk) {
+        this.c = columns;
+        this.p = plan;
+        this.lo = lo;
+        this.hi = hi;
+        this.chunk = chunk;
+    }
+
+    @Override
+    protected Accumulator compute() {
+        if (hi - lo <= chunk) return scan();
+        int mid = (lo + hi) >>> 1;
+        BookingCubeScan left = new BookingCubeScan(c, p, lo, mid, chunk);
+        left.fork();
+        Accumulator right = new BookingCubeScan(c, p, mid, hi, chunk).compute();
+        return left.join().merge(right);
+    }
+
+    private Accumulator scan() {
+        Accumulator acc = p.newAccumulator();
+        // Occupancy: per group key without its WEEKDAY and HOUR digits, a difference array over the hours of the week
+        Map<Long, long[]> weeks = p.occupancy ? new HashMap<>() : null;
+        for (int i = lo; i < hi; i++) {
+            int s = c.start[i], e = c.end[i];
+            if (e <= s || s >= p.to || e <= p.from) continue;
+            if (p.typeAllowed != null && !p.typeAllowed[c.type[i] & 0xFF]) continue;
+            if (p.statusMask != 0 && (p.statusMask & (1 << c.status[i])) == 0) continue;
+            int from = Math.max(s, p.from), to = Math.min(e, p.to);
+            long key = p.key(c, i);
+            if (p.occupancy) {
+                spread(weeks.computeIfAbsent(key, k -> new long[HOURS_PER_WEEK + 1]), from, to);
+            } else {
+                acc.add(key, 1, to - from, c.cents[i], s - c.created[i]);
+            }
+        }
+        if (weeks != null) {
+            weeks.forEach((key, diff) -> {
+                long[] minutes = prefixSums(diff);
+                for (int cell = 0; cell < HOURS_PER_WEEK; cell++) {
+                    if (minutes[cell] != 0) acc.add(key + p.cellKeys[cell], 0, minutes[cell], 0, 0);
+                }
+            });
+        }
+        return acc;
+    }
+
+    /** Minutes of [from, to) falling in each hour of the week (Monday 00:00 UTC first). */
+    static long[] minutesPerHourOfWeek(int from, int to) {
+        long[] diff = new long[HOURS_PER_WEEK + 1];
+        spread(diff, from, to);
+        return prefixSums(diff);
+    }
+
+    /**
+     * Adds the minutes of [from, to) per hour of the week to the difference array {@code diff}, in constant time:
+     * the partial first and last hours are point updates, the whole hours between them one or two range updates
+     * plus a uniform one per complete week.
+     */
+    static void spread(long[] diff, int from, int to) {
+        long first = Math.floorDiv(from, 60), last = Math.floorDiv(to - 1L, 60);
+        if (first == last) {
+            add(diff, hourOfWeek(first), 1, to - from);
+            return;
+        }
+        add(diff, hourOfWeek(first), 1, (first + 1) * 60 - from);
+        add(diff, hourOfWeek(last), 1, to - last * 60);
+        long inner = last - first - 1;
+        add(diff, 0, HOURS_PER_WEEK, inner / HOURS_PER_WEEK * 60);
+        int rest = (int) (inner % HOURS_PER_WEEK);
+        if (rest == 0) return;
+        int cell = hourOfWeek(first + 1);
+        int wrapped = cell + rest - HOURS_PER_WEEK;
+        if (wrapped <= 0) {
+            add(diff, cell, rest, 60);
+        } else {
+            add(diff, cell, HOURS_PER_WEEK - cell, 60);
+            add(diff, 0, wrapped, 60);
+        }
+    }
+
+    private static void add(long[] diff, int cell, int cells, long minutes) {
+        diff[cell] += minutes;
+        diff[cell + cells] -= minutes;
+    }
+
+    private static long[] prefixSums(long[] diff) {
+        long[] out = new long[HOURS_PER_WEEK];
+        long running = 0;
+        for (int cell = 0; cell < HOURS_PER_WEEK; cell++) out[cell] = running += diff[cell];
+        return out;
+    }
+
+    static int hourOfWeek(long epochHour) {
+        return weekday(Math.floorDiv(epochHour, 24)) * 24 + Math.floorMod(epochHour, 24);
+    }
+
+    // Monday = 0; 1970-01-01 was a Thursday
+    static int weekday(long epochDay) {
+        return Math.floorMod(epochDay + 3, 7);
+    }
+
+    /** Filters and group key layout of a query: a mixed-radix number with one digit per dimension. */
+    static final class Plan {
+        final List<Dimension> dims;
+        final boolean occupancy;
+        final boolean[] typeAllowed;
+        final int statusMask;
+        final int from;
+        final int to;
+        final int[] radix;
+        final long[] stride;
+        final long groups;
+        // Occupancy: key offset of each hour of the week, from the WEEKDAY and HOUR digits
+        final long[] cellKeys = new long[HOURS_PER_WEEK];
+
+        Plan(List<Dimension> dims, boolean occupancy, int types, boolean[] typeAllowed, int statusMask, int from, int to) {
+            this.dims = dims;
+            this.occupancy = occupancy;
+            this.typeAllowed = typeAllowed;
+            this.statusMask = statusMask;
+            this.from = from;
+            this.to = to;
+            radix = new int[dims.size()];
+            stride = new long[dims.size()];
+            long n = 1;
+            for (int d = dims.size() - 1; d >= 0; d--) {
+                radix[d] = switch (dims.get(d)) {
+                    case TYPE -> types;
+                    case STATUS -> BookingStatus.values().length;
+                    case WEEKDAY -> 7;
+                    case HOUR -> 24;
+                    case MONTH -> 12 * 10_000;
+                    case LEAD_DAYS, DURATION_DAYS -> DAY_BUCKETS;
+                };
+                stride[d] = n;
+                n *= radix[d];
+            }
+            groups = n;
+            for (int cell = 0; cell < HOURS_PER_WEEK; cell++) {
+                if (has(Dimension.WEEKDAY)) cellKeys[cell] += stride[position(Dimension.WEEKDAY)] * (cell / 24);
+                if (has(Dimension.HOUR)) cellKeys[cell] += stride[position(Dimension.HOUR)] * (cell % 24);
+            }
+        }
+
+        boolean has(Dimension d) {
+            return dims.contains(d);
+        }
+
+        int position(Dimension d) {
+            return dims.indexOf(d);
+        }
+
+        Accumulator newAccumulator() {
+            return groups <= DENSE_GROUPS ? new Dense((int) groups) : new Sparse();
+        }
+
+        // Group key of row i; for occupancy the WEEKDAY and HOUR digits are added per hour by cellKeys
+        long key(BookingCube.Columns c, int i) {
+            long key = 0;
+            for (int d = 0; d < radix.length; d++) {
+                int s = c.start[i];
+                long v = switch (dims.get(d)) {
+                    case TYPE -> c.type[i] & 0xFF;
+                    case STATUS -> c.status[i];
+                    case WEEKDAY -> occupancy ? 0 : weekday(Math.floorDiv(s, 1440));
+                    case HOUR -> occupancy ? 0 : Math.floorMod(s, 1440) / 60;
+                    case MONTH -> {
+                        LocalDate day = LocalDate.ofEpochDay(Math.floorDiv(s, 1440));
+                        yield day.getYear() * 12L + day.getMonthValue() - 1;
+                    }
+                    case LEAD_DAYS -> Math.min(DAY_BUCKETS - 1, Math.max(0, Math.floorDiv(s - c.created[i], 1440)));
+                    case DURATION_DAYS -> Math.min(DAY_BUCKETS - 1, Math.ceilDiv(c.end[i] - s, 1440));
+                };
+                key += v * stride[d];
+            }
+            return key;
+        }
+
+        int[] decode(long key) {
+            int[] v = new int[radix.length];
+            for (int d = 0; d < radix.length; d++) v[d] = (int) (key / stride[d] % radix[d]);
+            return v;
+        }
+
+        /** Of {@code perHourOfWeek}, the sum over the hours matching the group's WEEKDAY and HOUR values. */
+        long matchingMinutes(int[] values, long[] perHourOfWeek) {
+            long sum = 0;
+            for (int cell = 0; cell < HOURS_PER_WEEK; cell++) {
+                if (has(Dimension.WEEKDAY) && cell / 24 != values[position(Dimension.WEEKDAY)]) continue;
+                if (has(Dimension.HOUR) && cell % 24 != values[position(Dimension.HOUR)]) continue;
+                sum += perHourOfWeek[cell];
+            }
+            return sum;
+        }
+    }
+
+    /** Per-group sums of {@link #COUNT}, {@link #MINUTES}, {@link #CENTS} and {@link #LEAD_MINUTES}. */
+    abstract static class Accumulator {
+        abstract void add(long key, long count, long minutes, long cents, long leadMinutes);
+
+        abstract Accumulator merge(Accumulator other);
+
+        /** Non-empty groups in key order. */
+        abstract void forEach(BiConsumer<Long, long[]> action);
+
+        static boolean empty(long[] m, int at) {
+            return m[at + COUNT] == 0 && m[at + MINUTES] == 0;
+        }
+    }
+
+    static final class Dense extends Accumulator {
+        final long[] sums;
+
+        Dense(int groups) {
+            sums = new long[groups * MEASURES];
+        }
+
+        @Override
+        void add(long key, long count, long minutes, long cents, long leadMinutes) {
+            int at = (int) key * MEASURES;
+            sums[at + COUNT] += count;
+            sums[at + MINUTES] += minutes;
+            sums[at + CENTS] += cents;
+            sums[at + LEAD_MINUTES] += leadMinutes;
+        }
+
+        @Override
+        Accumulator merge(Accumulator other) {
+            long[] o = ((Dense) other).sums;
+            for (int i = 0; i < sums.length; i++) sums[i] += o[i];
+            return this;
+        }
+
+        @Override
+        void forEach(BiConsumer<Long, long[]> action) {
+            for (int at = 0; at < sums.length; at += MEASURES) {
+                if (!empty(sums, at)) action.accept((long) (at / MEASURES), Arrays.copyOfRange(sums, at, at + MEASURES));
+            }
+        }
+    }
+
+    static final class Sparse extends Accumulator {
+        final Map<Long, long[]> sums = new HashMap<>();
+
+        @Override
+        void add(long key, long count, long minutes, long cents, long leadMinutes) {
+            long[] m = sums.computeIfAbsent(key, k -> new long[MEASURES]);
+            m[COUNT] += count;
+            m[MINUTES] += minutes;
+            m[CENTS] += cents;
+            m[LEAD_MINUTES] += leadMinutes;
+        }
+
+        @Override
+        Accumulator merge(Accumulator other) {
+            ((Sparse) other).sums.forEach((k, o) -> add(k, o[COUNT], o[MINUTES], o[CENTS], o[LEAD_MINUTES]));
+            return this;
+        }
+
+        @Override
+        void forEach(BiConsumer<Long, long[]> action) {
+            new TreeMap<>(sums).forEach((k, m) -> {
+                if (!empty(m, 0)) action.accept(k, m);
+            });
+        }
+    }
+}
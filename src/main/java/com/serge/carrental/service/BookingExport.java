@@ -0,0 +1,92 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.serge.carrental.repo.AdminBookingQueries;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.OffsetDateTime;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes bookings overlapping a window as CSV or NDJSON straight from the database cursor to the response,
+ * one row at a time, optionally gzip-compressed.
+ */
+@Service
+@RequiredArgsConstructor
+public class BookingExport {
+    private static final Logger log = LoggerFactory.getLogger(BookingExport.class);
+    private static final String CSV_HEADER = "bookingId,status,userEmail,userPhone,typeId,start,end,licenseImageUrlOrKey,"
+            + "carRegistrationNumber,days,pricePerDay,total,createdAt";
+
+    private final AdminBookingQueries adminBookingQueries;
+    private final ObjectMapper objectMapper;
+
+    public enum Format { CSV, NDJSON }
+
+    public void write(OutputStream out, Format format, boolean gzip, String status, OffsetDateTime from, OffsetDateTime to)
+            throws IOException {
+        long started = System.nanoTime();
+        long[] rows = {0};
+        OutputStream target = gzip ? new GZIPOutputStream(out, 64 * 1024) : out;
+        Writer w = new BufferedWriter(new OutputStreamWriter(target, StandardCharsets.UTF_8), 64 * 1024);
+        if (format == Format.CSV) w.write(CSV_HEADER + "\n");
+        try {
+            adminBookingQueries.forEach(status, from, to, r -> {
+                try {
+                    if (format == Format.CSV) writeCsv(w, r);
+                    else w.write(objectMapper.writeValueAsString(toJson(r)) + "\n");
+                    rows[0]++;
+                } catch (IOException e) {
+                    // Client went away: abandons the query and its cursor
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        w.flush();
+        if (target instanceof GZIPOutputStream z) z.finish();
+        log.info("admin.bookings.export format={} gzip={} rows={} duration_ms={}",
+                format, gzip, rows[0], (System.nanoTime() - started) / 1_000_000);
+    }
+
+    private static void writeCsv(Writer w, AdminBookingQueries.Row r) throws IOException {
+        Object[] cells = {r.id(), r.status(), r.userEmail(), r.userPhone(), r.typeId(), r.start(), r.end(), r.licenseKey(),
+                r.carRegistrationNumber(), r.days(), r.pricePerDay(), r.total(), r.createdAt()};
+        for (int i = 0; i < cells.length; i++) {
+            if (i > 0) w.write(',');
+            if (cells[i] != null) w.write(csv(cells[i].toString()));
+        }
+        w.write('\n');
+    }
+
+    private static String csv(String v) {
+        if (v.indexOf(',') < 0 && v.indexOf('"') < 0 && v.indexOf('\n') < 0 && v.indexOf('\r') < 0) return v;
+        return '"' + v.replace("\"", "\"\"") + '"';
+    }
+
+    private static Map<String, Object> toJson(AdminBookingQueries.Row r) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("bookingId", r.id());
+        m.put("status", r.status());
+        m.put("userEmail", r.userEmail());
+        m.put("userPhone", r.userPhone());
+        m.put("typeId", r.typeId());
+        m.put("start", r.start().toString());
+        m.put("end", r.end().toString());
+        m.put("licenseImageUrlOrKey", r.licenseKey());
+        m.put("carRegistrationNumber", r.carRegistrationNumber());
+        m.put("days", r.days());
+        m.put("pricePerDay", r.pricePerDay());
+        m.put("total", r.total());
+        m.put("createdAt", r.createdAt().toString());
+        return m;
+    }
+}
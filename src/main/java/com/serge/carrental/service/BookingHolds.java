@@ -0,0 +1,125 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.BookingStatus;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Two-phase bookings. A hold is a HELD booking admitted like any other (so it takes capacity in the ledger and
+ * counts as active for availability) but without a license, and with {@code hold_expires_at} set
+ * {@code BOOKING_HOLD_TTL} ahead. Attaching a license turns it into TO_CONFIRM; holds still HELD at their expiry
+ * are marked EXPIRED in bulk by {@link #sweep}, which gives their capacity back.
+ */
+@Service
+@RequiredArgsConstructor
+public class BookingHolds {
+    private static final Logger log = LoggerFactory.getLogger(BookingHolds.class);
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+    private final CapacityLedger capacityLedger;
+    private final EmailOutbox emailOutbox;
+    private final UtilizationRollups utilizationRollups;
+    private final ApplicationEventPublisher events;
+
+    @Value("${BOOKING_HOLD_TTL:15m}")
+    private Duration holdTtl;
+    @Value("${BOOKING_HOLD_SWEEP_BATCH:500}")
+    private int sweepBatch;
+
+    public OffsetDateTime expiryFrom(OffsetDateTime now) {
+        return now.plus(holdTtl);
+    }
+
+    /**
+     * Turns the user's unexpired hold into a TO_CONFIRM booking with the license attached and queues
+     * {@code notification}. Returns false, changing nothing, if the hold is no longer HELD or has expired.
+     * Its capacity stays taken: both statuses are active.
+     */
+    @Transactional
+    public boolean confirm(UUID bookingId, UUID userId, String licenseKey, EmailOutbox.Message notification) {
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        List<UtilizationRollups.Change> confirmed = jdbc.query("""
+                UPDATE bookings
+                SET status = 'TO_CONFIRM', license_key = ?, hold_expires_at = NULL, updated_at = CAST(? AS timestamp)
+                WHERE id = ? AND user_id = ? AND status = 'HELD' AND hold_expires_at > CAST(? AS timestamp)
+                RETURNING type_id, start_ts, end_ts, total
+                """, (rs, i) -> change(rs, BookingStatus.HELD, BookingStatus.TO_CONFIRM),
+                licenseKey, now, bookingId, userId, now);
+        if (confirmed.isEmpty()) return false;
+        utilizationRollups.applyAll(confirmed);
+        emailOutbox.enqueue(notification);
+        return true;
+    }
+
+    /** Expires due holds, {@code BOOKING_HOLD_SWEEP_BATCH} per transaction, skipping rows locked by a confirm. */
+    @Scheduled(initialDelayString = "${BOOKING_HOLD_SWEEP_MS:30000}", fixedDelayString = "${BOOKING_HOLD_SWEEP_MS:30000}")
+    public void sweep() {
+        int total = 0;
+        int expired;
+        do {
+            expired = Objects.requireNonNull(tx.execute(s -> expireBatch()));
+            total += expired;
+        } while (expired == sweepBatch);
+        if (total > 0) log.info("bookings.holds.expired count={}", total);
+    }
+
+    private int expireBatch() {
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        List<BookingChangedEvent> expired = new ArrayList<>();
+        List<UtilizationRollups.Change> changes = jdbc.query("""
+                WITH due AS (
+                    SELECT id FROM bookings
+                    WHERE status = 'HELD' AND hold_expires_at <= CAST(? AS timestamp)
+                    ORDER BY hold_expires_at
+                    LIMIT ?
+                    FOR UPDATE SKIP LOCKED
+                )
+                UPDATE bookings b
+                SET status = 'EXPIRED', hold_expires_at = NULL, updated_at = CAST(? AS timestamp)
+                FROM due
+                WHERE b.id = due.id
+                RETURNING b.id, b.type_id, b.start_ts, b.end_ts, b.total
+                """, (rs, i) -> {
+                    UtilizationRollups.Change c = change(rs, BookingStatus.HELD, BookingStatus.EXPIRED);
+                    expired.add(new BookingChangedEvent(rs.getObject("id", UUID.class), c.typeId(), c.start(), c.end(), c.from(), c.to()));
+                    return c;
+                },
+                now, sweepBatch, now);
+        utilizationRollups.applyAll(changes);
+        expired.stream()
+                .collect(Collectors.groupingBy(BookingChangedEvent::typeId,
+                        Collectors.mapping(e -> new CapacityLedger.Span(e.start(), e.end()), Collectors.toList())))
+                .forEach(capacityLedger::releaseAll);
+        // Delivered after commit: occupancy index, hour buckets and cache generations follow as for a cancel
+        expired.forEach(events::publishEvent);
+        return expired.size();
+    }
+
+    private static UtilizationRollups.Change change(ResultSet rs, BookingStatus from, BookingStatus to) throws SQLException {
+        return new UtilizationRollups.Change(
+                rs.getString("type_id"),
+                rs.getObject("start_ts", LocalDateTime.class).atOffset(ZoneOffset.UTC),
+                rs.getObject("end_ts", LocalDateTime.class).atOffset(ZoneOffset.UTC),
+                rs.getBigDecimal("total"),
+                from, to);
+    }
+}
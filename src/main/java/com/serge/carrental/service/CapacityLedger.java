@@ -0,0 +1,130 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.repo.CapacityLedgerRepository;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Booking admission against the hourly capacity ledger. A booking holds one unit of every UTC hour it
+ * overlaps (the same hours the availability buckets count), so admission touches O(hours) rows of one type
+ * instead of re-counting overlapping bookings, and concurrent admissions serialize on the slot rows they share.
+ * Partial hours count as whole ones, so bookings meeting off the hour (10:30-12:30, 12:30-14:30) share a slot.
+ * Both operations must run in the transaction that changes the booking's status.
+ */
+@Service
+@RequiredArgsConstructor
+public class CapacityLedger {
+    private static final Logger log = LoggerFactory.getLogger(CapacityLedger.class);
+    private final CapacityLedgerRepository ledgerRepository;
+    private final JdbcTemplate jdbc;
+
+    /** Takes one unit of each hour [from, to) overlaps if all of them have room; false if any is full. */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean reserve(String typeId, OffsetDateTime from, OffsetDateTime to) {
+        long slots = AvailabilityBuckets.ceilHour(to) - AvailabilityBuckets.floorHour(from);
+        ledgerRepository.ensureSlots(typeId, from, to);
+        int taken = ledgerRepository.reserve(typeId, from, to);
+        log.debug("capacity.reserve typeId={} from={} to={} slots={} taken={}", typeId, from, to, slots, taken);
+        if (taken != 0 && taken != slots) {
+            // Only possible if slots went missing; throwing rolls the partial reservation back
+            throw new IllegalStateException("Capacity ledger reserved " + taken + " of " + slots + " slots");
+        }
+        return taken == slots;
+    }
+
+    /** Window of one booking in a batch admission. */
+    public record Span(OffsetDateTime from, OffsetDateTime to) {}
+
+    /**
+     * Admits a batch of same-type bookings in arrival order: locks every slot the batch spans once,
+     * decides each booking against the in-memory counts (including earlier admissions of the batch)
+     * and writes the changed counts back. Returns which spans were admitted.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public boolean[] reserveAll(String typeId, List<Span> spans) {
+        long firstHour = spans.stream().mapToLong(s -> AvailabilityBuckets.floorHour(s.from())).min().orElseThrow();
+        long lastHour = spans.stream().mapToLong(s -> AvailabilityBuckets.ceilHour(s.to())).max().orElseThrow();
+        OffsetDateTime from = AvailabilityBuckets.hourStart(firstHour);
+        OffsetDateTime to = AvailabilityBuckets.hourStart(lastHour);
+        ledgerRepository.ensureSlots(typeId, from, to);
+
+        int total = jdbc.queryForObject("SELECT total_quantity FROM car_types WHERE id = ?", Integer.class, typeId);
+        int[] used = new int[(int) (lastHour - firstHour)];
+        // Same row order as reserve(), so single and batched admissions never deadlock
+        jdbc.query("""
+                SELECT CAST(EXTRACT(EPOCH FROM l.slot_start - date_trunc('hour', CAST(? AS timestamp))) / 3600 AS int) AS idx, l.used
+                FROM capacity_ledger l
+                WHERE l.type_id = ?
+                  AND l.slot_start >= date_trunc('hour', CAST(? AS timestamp))
+                  AND l.slot_start < CAST(? AS timestamp)
+                ORDER BY l.slot_start
+                FOR UPDATE
+                """, rs -> {
+            used[rs.getInt("idx")] = rs.getInt("used");
+        }, from, typeId, from, to);
+
+        boolean[] admitted = new boolean[spans.size()];
+        boolean[] changed = new boolean[used.length];
+        for (int i = 0; i < spans.size(); i++) {
+            int a = (int) (AvailabilityBuckets.floorHour(spans.get(i).from()) - firstHour);
+            int b = (int) (AvailabilityBuckets.ceilHour(spans.get(i).to()) - firstHour);
+            int peak = 0;
+            for (int h = a; h < b; h++) peak = Math.max(peak, used[h]);
+            if (peak >= total) continue;
+            for (int h = a; h < b; h++) {
+                used[h]++;
+                changed[h] = true;
+            }
+            admitted[i] = true;
+        }
+
+        List<Object[]> updates = new ArrayList<>();
+        for (int h = 0; h < used.length; h++) {
+            if (changed[h]) updates.add(new Object[]{used[h], typeId, from, h});
+        }
+        if (!updates.isEmpty()) {
+            jdbc.batchUpdate("""
+                    UPDATE capacity_ledger SET used = ?
+                    WHERE type_id = ? AND slot_start = date_trunc('hour', CAST(? AS timestamp)) + ? * interval '1 hour'
+                    """, updates);
+        }
+        log.debug("capacity.reserve_all typeId={} spans={} admitted={} slots={}",
+                typeId, spans.size(), countTrue(admitted), updates.size());
+        return admitted;
+    }
+
+    private static int countTrue(boolean[] flags) {
+        int n = 0;
+        for (boolean f : flags) if (f) n++;
+        return n;
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void release(String typeId, OffsetDateTime from, OffsetDateTime to) {
+        int released = ledgerRepository.release(typeId, from, to);
+        log.debug("capacity.release typeId={} from={} to={} slots={}", typeId, from, to, released);
+    }
+
+    /** Gives back one unit of each slot covered by each of the spans, in one batch. */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void releaseAll(String typeId, List<Span> spans) {
+        if (spans.isEmpty()) return;
+        jdbc.batchUpdate("""
+                UPDATE capacity_ledger SET used = used - 1
+                WHERE type_id = ?
+                  AND slot_start >= date_trunc('hour', CAST(? AS timestamp))
+                  AND slot_start < CAST(? AS timestamp)
+                  AND used > 0
+                """, spans.stream().map(s -> new Object[]{typeId, s.from(), s.to()}).toList());
+        log.debug("capacity.release_all typeId={} spans={}", typeId, spans.size());
+    }
+}
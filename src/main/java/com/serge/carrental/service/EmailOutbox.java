@@ -0,0 +1,121 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.OutboxEmail;
+import com.serge.carrental.repo.OutboxEmailRepository;
+import jakarta.mail.internet.MimeMessage;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Transactional email outbox. Emails are stored in {@code email_outbox} by the transaction that triggers them,
+ * so they are sent if and only if it commits, and callers never wait for SMTP. A relay claims due emails in
+ * batches (skipping rows another node is sending), sends each batch over one connection and retries
+ * failures with exponential backoff until {@code EMAIL_RELAY_MAX_ATTEMPTS}.
+ */
+@Service
+@RequiredArgsConstructor
+public class EmailOutbox {
+    private static final Logger log = LoggerFactory.getLogger(EmailOutbox.class);
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private final OutboxEmailRepository outboxRepository;
+    private final EmailService emailService;
+    private final TransactionTemplate tx;
+
+    @Value("${EMAIL_RELAY_BATCH:50}")
+    private int batchSize;
+    @Value("${EMAIL_RELAY_MAX_ATTEMPTS:10}")
+    private int maxAttempts;
+    @Value("${EMAIL_RELAY_BACKOFF:5s}")
+    private Duration backoff;
+    @Value("${EMAIL_RELAY_MAX_BACKOFF:1h}")
+    private Duration maxBackoff;
+
+    /** An email to queue. */
+    public record Message(String to, String subject, String html) {}
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void enqueue(Message message) {
+        enqueueAll(List.of(message));
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void enqueueAll(List<Message> messages) {
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        outboxRepository.saveAll(messages.stream().map(m -> OutboxEmail.builder()
+                .recipient(m.to())
+                .subject(m.subject())
+                .html(m.html())
+                .status(OutboxEmail.Status.PENDING)
+                .attempts(0)
+                .nextAttemptAt(now)
+                .createdAt(now)
+                .build()).toList());
+        log.debug("email.outbox.enqueue count={}", messages.size());
+    }
+
+    @Scheduled(fixedDelayString = "${EMAIL_RELAY_INTERVAL_MS:1000}")
+    public void relay() {
+        Integer claimed;
+        do {
+            claimed = tx.execute(s -> relayBatch());
+        } while (claimed != null && claimed == batchSize);
+    }
+
+    // Rows stay locked until the batch's outcome is recorded, so no other relay sends them twice
+    private int relayBatch() {
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        List<OutboxEmail> due = outboxRepository.claimDue(now, batchSize);
+        if (due.isEmpty()) return 0;
+
+        Map<MimeMessage, OutboxEmail> byMessage = new IdentityHashMap<>();
+        Map<OutboxEmail, Exception> failed = new HashMap<>();
+        for (OutboxEmail e : due) {
+            try {
+                byMessage.put(emailService.compose(e.getRecipient(), e.getSubject(), e.getHtml()), e);
+            } catch (IllegalArgumentException ex) {
+                failed.put(e, ex);
+            }
+        }
+        emailService.sendAll(new ArrayList<>(byMessage.keySet())).forEach((m, ex) -> failed.put(byMessage.get(m), ex));
+
+        for (OutboxEmail e : due) {
+            Exception error = failed.get(e);
+            e.setAttempts(e.getAttempts() + 1);
+            if (error == null) {
+                e.setStatus(OutboxEmail.Status.SENT);
+                e.setSentAt(now);
+                e.setLastError(null);
+            } else {
+                String msg = String.valueOf(error.getMessage());
+                e.setLastError(msg.length() > MAX_ERROR_LENGTH ? msg.substring(0, MAX_ERROR_LENGTH) : msg);
+                if (e.getAttempts() >= maxAttempts) {
+                    e.setStatus(OutboxEmail.Status.FAILED);
+                    log.error("email.outbox.gave_up id={} to={} attempts={} error={}", e.getId(), e.getRecipient(), e.getAttempts(), msg);
+                } else {
+                    e.setNextAttemptAt(now.plus(backoff(e.getAttempts())));
+                }
+            }
+        }
+        outboxRepository.saveAll(due);
+        log.debug("email.outbox.relay batch={} failed={}", due.size(), failed.size());
+        return due.size();
+    }
+
+    private Duration backoff(int attempts) {
+        Duration d = backoff.multipliedBy(1L << Math.min(attempts - 1, 20));
+        return d.compareTo(maxBackoff) > 0 ? maxBackoff : d;
+    }
+}
@@ -5,10 +5,19 @@ import org.slf4j.LoggerFactory;
 import jakarta.mail.internet.MimeMessage;
 import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.MailSendException;
 import org.springframework.mail.javamail.JavaMailSender;
 import org.springframework.mail.javamail.MimeMessageHelper;
 import org.springframework.stereotype.Service;
 
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SMTP delivery. Application code doesn't call this directly: emails are queued with {@link EmailOutbox}
+ * in the triggering transaction and delivered by its relay.
+ */
 @Service
 @RequiredArgsConstructor
 public class EmailService {
@@ -18,20 +27,43 @@ public class EmailService {
     @Value("${MAIL_FROM:noreply@car-rental.local}")
     private String from;
 
-    public void send(String to, String subject, String html) {
+    public MimeMessage compose(String to, String subject, String html) {
         try {
-            log.debug("email.send to={} subject={}", to, subject);
             MimeMessage msg = mailSender.createMimeMessage();
             MimeMessageHelper helper = new MimeMessageHelper(msg, true);
             helper.setFrom(from);
             helper.setTo(to);
             helper.setSubject(subject);
             helper.setText(html, true);
-            mailSender.send(msg);
-            log.info("email.send.success to={} subject={}", to, subject);
+            return msg;
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Invalid email to=" + to, e);
+        }
+    }
+
+    /**
+     * Sends the messages over one SMTP connection. Returns the messages that failed with their errors;
+     * an empty map means everything was sent.
+     */
+    public Map<MimeMessage, Exception> sendAll(List<MimeMessage> messages) {
+        Map<MimeMessage, Exception> failed = new IdentityHashMap<>();
+        if (messages.isEmpty()) return failed;
+        try {
+            log.debug("email.send batch={}", messages.size());
+            mailSender.send(messages.toArray(new MimeMessage[0]));
+            log.info("email.send.success batch={}", messages.size());
+        } catch (MailSendException e) {
+            if (e.getFailedMessages().isEmpty()) {
+                // Connection-level failure: nothing was sent
+                messages.forEach(m -> failed.put(m, e));
+            } else {
+                e.getFailedMessages().forEach((m, ex) -> failed.put((MimeMessage) m, ex));
+            }
+            log.warn("email.send.failed batch={} failed={} error={}", messages.size(), failed.size(), e.toString());
         } catch (Exception e) {
-            log.error("email.send.failed to={} subject={} error={}", to, subject, e.toString(), e);
-            throw new RuntimeException("Failed to send email", e);
+            messages.forEach(m -> failed.put(m, e));
+            log.warn("email.send.failed batch={} error={}", messages.size(), e.toString());
         }
+        return failed;
     }
 }
@@ -0,0 +1,177 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+/**
+ * Idempotency-Key handling for booking creation. Redis is the fast path and the lock: the first request
+ * for a key claims it with SET NX ({@code pending|hash|token}) and, once its booking is committed, replaces it with
+ * {@code done|hash|bookingId}, so replays are answered without touching Postgres and concurrent duplicates wait for
+ * the first request instead of racing it. The pending claim is only a short lease ({@code IDEMPOTENCY_LEASE}), so a
+ * request that died holding it blocks its key briefly rather than for the whole {@code IDEMPOTENCY_TTL}. Keys of
+ * created bookings are also written to {@code idempotency_keys} in the admission transaction, which answers replays
+ * after the Redis entry has expired or been lost.
+ */
+@Service
+@RequiredArgsConstructor
+public class IdempotencyService {
+    private static final Logger log = LoggerFactory.getLogger(IdempotencyService.class);
+    private static final String PREFIX = "idem:";
+
+    // KEYS[1]: idempotency key. ARGV[1]: claim token. Deletes the claim only if it is still the caller's.
+    private static final RedisScript<Long> RELEASE = new DefaultRedisScript<>("""
+            local v = redis.call('GET', KEYS[1])
+            if v and string.sub(v, -string.len(ARGV[1])) == ARGV[1] and string.sub(v, 1, 8) == 'pending|' then
+              return redis.call('DEL', KEYS[1])
+            end
+            return 0
+            """, Long.class);
+
+    private final StringRedisTemplate redis;
+    private final JdbcTemplate jdbc;
+
+    // How long a completed key is answered from Redis
+    @Value("${IDEMPOTENCY_TTL:24h}")
+    private Duration ttl;
+    // How long a pending claim lives without its request completing or releasing it; above the longest create request
+    @Value("${IDEMPOTENCY_LEASE:2m}")
+    private Duration lease;
+    // How long a duplicate waits for the request holding the key before giving up with 409
+    @Value("${IDEMPOTENCY_WAIT:30s}")
+    private Duration wait;
+    @Value("${IDEMPOTENCY_POLL_MS:50}")
+    private long pollMs;
+
+    public enum Outcome {
+        /** The caller owns the key and must {@link #complete} or {@link #release} it. */
+        ACQUIRED,
+        /** The key already created {@link Claim#bookingId()}. */
+        REPLAY,
+        /** The key was used with a different payload. */
+        MISMATCH,
+        /** Another request still holds the key. */
+        IN_PROGRESS
+    }
+
+    public record Claim(Outcome outcome, String key, String payloadHash, String token, UUID bookingId) {}
+
+    /** SHA-256 over the parts that make two create requests the same request. */
+    public static String hash(String... parts) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            for (String p : parts) {
+                md.update(String.valueOf(p).getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(md.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public Claim claim(String key, String payloadHash) {
+        String redisKey = PREFIX + key;
+        String token = UUID.randomUUID().toString();
+        long deadline = System.nanoTime() + wait.toNanos();
+        while (true) {
+            String current;
+            try {
+                if (Boolean.TRUE.equals(redis.opsForValue().setIfAbsent(redisKey, "pending|" + payloadHash + "|" + token, lease))) {
+                    // First in Redis, but Postgres still knows keys completed before their Redis entry went away
+                    Optional<Claim> stored = fromDatabase(key, payloadHash);
+                    if (stored.isEmpty()) return new Claim(Outcome.ACQUIRED, key, payloadHash, token, null);
+                    if (stored.get().outcome() == Outcome.REPLAY) {
+                        redis.opsForValue().set(redisKey, "done|" + payloadHash + "|" + stored.get().bookingId(), ttl);
+                    } else {
+                        release(new Claim(Outcome.ACQUIRED, key, payloadHash, token, null));
+                    }
+                    return stored.get();
+                }
+                current = redis.opsForValue().get(redisKey);
+            } catch (Exception e) {
+                // Without Redis only completed keys are deduplicated
+                log.warn("idempotency.redis_failed key={} err={}", key, e.toString());
+                return fromDatabase(key, payloadHash).orElse(new Claim(Outcome.ACQUIRED, key, payloadHash, null, null));
+            }
+            if (current == null) continue; // released or lease expired in between: claim again, which checks Postgres
+            String[] p = current.split("\\|");
+            if (!p[1].equals(payloadHash)) return new Claim(Outcome.MISMATCH, key, payloadHash, null, null);
+            if (p[0].equals("done")) return new Claim(Outcome.REPLAY, key, payloadHash, null, UUID.fromString(p[2]));
+            if (System.nanoTime() > deadline) return new Claim(Outcome.IN_PROGRESS, key, payloadHash, null, null);
+            try {
+                Thread.sleep(pollMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new Claim(Outcome.IN_PROGRESS, key, payloadHash, null, null);
+            }
+        }
+    }
+
+    private Optional<Claim> fromDatabase(String key, String payloadHash) {
+        List<Claim> rows = jdbc.query("SELECT payload_hash, booking_id FROM idempotency_keys WHERE key = ?",
+                (rs, i) -> rs.getString("payload_hash").equals(payloadHash)
+                        ? new Claim(Outcome.REPLAY, key, payloadHash, null, rs.getObject("booking_id", UUID.class))
+                        : new Claim(Outcome.MISMATCH, key, payloadHash, null, null),
+                key);
+        return rows.stream().findFirst();
+    }
+
+    /**
+     * Records the keys of admitted bookings; must run in the transaction inserting the bookings.
+     * A key already recorded (only possible if its Redis claim was lost) is left as is.
+     */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void recordAll(List<Claim> claims, List<UUID> bookingIds) {
+        if (claims.isEmpty()) return;
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        List<Object[]> rows = new ArrayList<>();
+        for (int i = 0; i < claims.size(); i++) {
+            rows.add(new Object[]{claims.get(i).key(), claims.get(i).payloadHash(), bookingIds.get(i), now});
+        }
+        jdbc.batchUpdate("""
+                INSERT INTO idempotency_keys (key, payload_hash, booking_id, created_at)
+                VALUES (?, ?, ?, CAST(? AS timestamp))
+                ON CONFLICT (key) DO NOTHING
+                """, rows);
+    }
+
+    /** Publishes the created booking for replays and for requests waiting on the key. */
+    public void complete(Claim claim, UUID bookingId) {
+        try {
+            redis.opsForValue().set(PREFIX + claim.key(), "done|" + claim.payloadHash() + "|" + bookingId, ttl);
+        } catch (Exception e) {
+            log.warn("idempotency.complete_failed key={} err={}", claim.key(), e.toString());
+        }
+    }
+
+    /** Gives the key up without a booking (rejected or failed request), so a retry may use it again. */
+    public void release(Claim claim) {
+        if (claim.token() == null) return;
+        try {
+            redis.execute(RELEASE, List.of(PREFIX + claim.key()), claim.token());
+        } catch (Exception e) {
+            log.warn("idempotency.release_failed key={} err={}", claim.key(), e.toString());
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.serge.carrental.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-process L1 in front of the Redis availability cache.
+ * Keys are the same generation-versioned keys used in Redis, so a generation bump
+ * makes stale L1 entries unreachable exactly like their Redis counterparts.
+ */
+@Component
+public class LocalAvailabilityCache {
+    private final Cache<String, Object> cache;
+
+    public LocalAvailabilityCache(@Value("${AVAILABILITY_L1_MAX_ENTRIES:50000}") long maxEntries,
+                                  @Value("${AVAILABILITY_L1_TTL:1m}") Duration ttl) {
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .build();
+    }
+
+    public Integer getCount(String key) {
+        return (Integer) cache.getIfPresent(key);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Map<String, Integer> getAll(String key) {
+        return (Map<String, Integer>) cache.getIfPresent(key);
+    }
+
+    public void put(String key, Integer available) {
+        cache.put(key, available);
+    }
+
+    public void put(String key, Map<String, Integer> availableByType) {
+        cache.put(key, Collections.unmodifiableMap(new LinkedHashMap<>(availableByType)));
+    }
+
+    public Map<String, Object> stats() {
+        CacheStats s = cache.stats();
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("size", cache.estimatedSize());
+        out.put("hits", s.hitCount());
+        out.put("misses", s.missCount());
+        out.put("hitRate", s.hitRate());
+        out.put("evictions", s.evictionCount());
+        return out;
+    }
+}
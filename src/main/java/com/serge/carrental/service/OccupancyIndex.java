@@ -0,0 +1,145 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.BookingStatus;
+import com.serge.carrental.repo.BookingRepository;
+import com.serge.carrental.repo.BookingSpan;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.annotation.Order;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Node-local occupancy index: one {@link OccupancyTimeline} per car type, answering
+ * "how many cars of this type are in use at the busiest instant of [from, to)".
+ * Loaded from the bookings table at startup, kept current from local {@link BookingChangedEvent}s
+ * and changes broadcast by other nodes, and periodically rebuilt as a safety net.
+ */
+@Service
+@RequiredArgsConstructor
+public class OccupancyIndex {
+    private static final Logger log = LoggerFactory.getLogger(OccupancyIndex.class);
+    private static final List<BookingStatus> ACTIVE_STATUSES =
+            Arrays.stream(BookingStatus.values()).filter(BookingStatus::isActive).toList();
+
+    private final BookingRepository bookingRepository;
+
+    // Bookings that left an active status this long before a rebuild are read too, so the rebuild can tell
+    // which of the changes delivered while it ran its snapshot already reflects
+    @Value("${AVAILABILITY_INDEX_REBUILD_LOOKBACK:5m}")
+    private Duration rebuildLookback;
+
+    private volatile Map<String, OccupancyTimeline> timelines = new ConcurrentHashMap<>();
+    private volatile boolean ready;
+    // Deltas applied while a rebuild is reading the table; those the snapshot missed are replayed onto it
+    private List<Change> pendingDuringRebuild;
+
+    private record Change(UUID bookingId, String typeId, long from, long to, int delta) {}
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    public int peak(String typeId, OffsetDateTime from, OffsetDateTime to) {
+        OccupancyTimeline t = timelines.get(typeId);
+        return t == null ? 0 : t.peak(millis(from), millis(to));
+    }
+
+    /** Peak of each of {@code buckets} consecutive windows of {@code step} starting at {@code from}. */
+    public int[] peaks(String typeId, OffsetDateTime from, Duration step, int buckets) {
+        OccupancyTimeline t = timelines.get(typeId);
+        return t == null ? new int[buckets] : t.peaks(millis(from), step.toMillis(), buckets);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void load() {
+        rebuild();
+    }
+
+    @Scheduled(initialDelayString = "${AVAILABILITY_INDEX_RESYNC_MS:300000}",
+               fixedDelayString = "${AVAILABILITY_INDEX_RESYNC_MS:300000}")
+    public void resync() {
+        rebuild();
+    }
+
+    // Before AvailabilityService's listener, which bumps generations once the index has the change
+    @Order(0)
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onBookingChanged(BookingChangedEvent e) {
+        int delta = e.occupancyDelta();
+        if (delta == 0) return;
+        apply(new Change(e.bookingId(), e.typeId(), millis(e.start()), millis(e.end()), delta));
+    }
+
+    /** Applies a change committed on another node; {@code bookingId} may be null if unknown. */
+    public void applyRemote(UUID bookingId, String typeId, long fromMillis, long toMillis, int delta) {
+        apply(new Change(bookingId, typeId, fromMillis, toMillis, delta));
+    }
+
+    private synchronized void apply(Change c) {
+        if (pendingDuringRebuild != null) pendingDuringRebuild.add(c);
+        apply(timelines, c.typeId(), c.from(), c.to(), c.delta());
+        log.trace("occupancy.apply typeId={} from={} to={} delta={}", c.typeId(), c.from(), c.to(), c.delta());
+    }
+
+    void rebuild() {
+        long started = System.nanoTime();
+        synchronized (this) {
+            pendingDuringRebuild = new ArrayList<>();
+        }
+        try {
+            Map<String, OccupancyTimeline> fresh = new ConcurrentHashMap<>();
+            // Status of every booking the snapshot saw: all active ones and any recently changed
+            Map<UUID, Boolean> seenActive = new HashMap<>();
+            List<BookingSpan> spans = bookingRepository.findSpansByStatusInOrUpdatedSince(
+                    ACTIVE_STATUSES, OffsetDateTime.now(ZoneOffset.UTC).minus(rebuildLookback));
+            for (BookingSpan s : spans) {
+                seenActive.put(s.id(), s.status().isActive());
+                if (s.status().isActive()) apply(fresh, s.typeId(), millis(s.startTs()), millis(s.endTs()), 1);
+            }
+            synchronized (this) {
+                // Changes committed before the snapshot query but delivered after it are already in it
+                for (Change c : pendingDuringRebuild) {
+                    if (!inSnapshot(c, seenActive)) apply(fresh, c.typeId(), c.from(), c.to(), c.delta());
+                }
+                timelines = fresh;
+                ready = true;
+            }
+            log.info("occupancy.rebuild bookings={} types={} duration_ms={}",
+                    spans.size(), fresh.size(), (System.nanoTime() - started) / 1_000_000);
+        } catch (Exception e) {
+            log.warn("occupancy.rebuild.failed ready={} err={}", ready, e.toString());
+        } finally {
+            synchronized (this) {
+                pendingDuringRebuild = null;
+            }
+        }
+    }
+
+    // Bookings only ever go from active to inactive: a +1 is in the snapshot if it saw the booking at all,
+    // a -1 unless it saw the booking still active
+    private static boolean inSnapshot(Change c, Map<UUID, Boolean> seenActive) {
+        if (c.bookingId() == null) return false;
+        Boolean active = seenActive.get(c.bookingId());
+        return c.delta() > 0 ? active != null : !Boolean.TRUE.equals(active);
+    }
+
+    private static void apply(Map<String, OccupancyTimeline> target, String typeId, long from, long to, int delta) {
+        target.computeIfAbsent(typeId, k -> new OccupancyTimeline()).add(from, to, delta);
+    }
+
+    private static long millis(OffsetDateTime t) {
+        return t.toInstant().toEpochMilli();
+    }
+}
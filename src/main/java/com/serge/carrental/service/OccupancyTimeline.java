@@ -0,0 +1,114 @@
+package com.serge.carrental.service;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Step function of concurrently active bookings for a single car type.
+ * Breakpoints (epoch millis) are kept sorted in primitive arrays;
+ * levels[i] is the number of cars in use on [points[i], points[i+1]).
+ * Before the first breakpoint and after the last one the level is 0.
+ */
+public class OccupancyTimeline {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private long[] points = new long[16];
+    private int[] levels = new int[16];
+    private int size;
+
+    /** Adds {@code delta} cars in use on [from, to). */
+    public void add(long from, long to, int delta) {
+        if (from >= to || delta == 0) return;
+        lock.writeLock().lock();
+        try {
+            int i = ensurePoint(from);
+            int j = ensurePoint(to);
+            for (int k = i; k < j; k++) levels[k] += delta;
+            // Drop breakpoints that no longer change the level, so cancelled bookings don't leak memory
+            if (j < size && levels[j] == levels[j - 1]) remove(j);
+            if (levels[i] == (i == 0 ? 0 : levels[i - 1])) remove(i);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Peak number of cars in use at any instant of [from, to). */
+    public int peak(long from, long to) {
+        if (from >= to) return 0;
+        lock.readLock().lock();
+        try {
+            int k = floorIndex(from);
+            int max = k < 0 ? 0 : levels[k];
+            for (k = k + 1; k < size && points[k] < to; k++) {
+                max = Math.max(max, levels[k]);
+            }
+            return max;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Peaks of {@code buckets} consecutive windows of {@code step} millis starting at {@code from},
+     * computed in a single sweep over the breakpoints.
+     */
+    public int[] peaks(long from, long step, int buckets) {
+        int[] out = new int[buckets];
+        lock.readLock().lock();
+        try {
+            int k = floorIndex(from);
+            int level = k < 0 ? 0 : levels[k];
+            k++;
+            for (int b = 0; b < buckets; b++) {
+                long start = from + b * step;
+                long end = start + step;
+                for (; k < size && points[k] <= start; k++) level = levels[k];
+                int max = level;
+                for (; k < size && points[k] < end; k++) {
+                    level = levels[k];
+                    max = Math.max(max, level);
+                }
+                out[b] = max;
+            }
+            return out;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int breakpoints() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int floorIndex(long t) {
+        int idx = Arrays.binarySearch(points, 0, size, t);
+        return idx >= 0 ? idx : -idx - 2;
+    }
+
+    private int ensurePoint(long t) {
+        int idx = Arrays.binarySearch(points, 0, size, t);
+        if (idx >= 0) return idx;
+        idx = -idx - 1;
+        if (size == points.length) {
+            points = Arrays.copyOf(points, size * 2);
+            levels = Arrays.copyOf(levels, size * 2);
+        }
+        System.arraycopy(points, idx, points, idx + 1, size - idx);
+        System.arraycopy(levels, idx, levels, idx + 1, size - idx);
+        points[idx] = t;
+        levels[idx] = idx == 0 ? 0 : levels[idx - 1];
+        size++;
+        return idx;
+    }
+
+    private void remove(int idx) {
+        System.arraycopy(points, idx + 1, points, idx, size - idx - 1);
+        System.arraycopy(levels, idx + 1, levels, idx, size - idx - 1);
+        size--;
+    }
+}
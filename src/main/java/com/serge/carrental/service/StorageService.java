@@ -5,38 +5,147 @@ import org.slf4j.LoggerFactory;
 import lombok.RequiredArgsConstructor;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
-import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
-import software.amazon.awssdk.services.s3.model.HeadBucketRequest;
-import software.amazon.awssdk.services.s3.model.NoSuchBucketException;
-import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.*;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedPutObjectRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PutObjectPresignRequest;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.util.UUID;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
 
 @Service
 @RequiredArgsConstructor
 public class StorageService {
     private static final Logger log = LoggerFactory.getLogger(StorageService.class);
     private final S3Client s3;
+    private final S3Presigner presigner;
     @Value("${S3_BUCKET:car-rental}")
     private String bucket;
+    @Value("${LICENSE_UPLOAD_URL_TTL:10m}")
+    private Duration uploadUrlTtl;
+    @Value("${LICENSE_MAX_SIZE:20MB}")
+    private DataSize maxLicenseSize;
+    @Value("${S3_MULTIPART_THRESHOLD:8MB}")
+    private DataSize multipartThreshold;
+    // S3 requires at least 5MB for every part but the last
+    @Value("${S3_MULTIPART_PART_SIZE:5MB}")
+    private DataSize partSize;
 
-    public String uploadLicense(byte[] bytes, String originalFilename, String contentType) {
+    /**
+     * Streams a license image to the bucket. Images up to {@code S3_MULTIPART_THRESHOLD} go in a single PUT
+     * read straight from the stream; larger ones are sent as a multipart upload through one reused part buffer,
+     * so heap use per upload is bounded by the part size rather than the image size.
+     */
+    public String uploadLicense(InputStream in, long contentLength, String originalFilename, String contentType) throws IOException {
         ensureBucket();
         String key = "uploads/" + UUID.randomUUID() + "-" + sanitize(originalFilename);
-        PutObjectRequest req = PutObjectRequest.builder()
-                .bucket(bucket)
-                .key(key)
-                .contentType(contentType)
-                .build();
-        s3.putObject(req, RequestBody.fromBytes(bytes));
-        log.debug("storage.uploadLicense bucket={} key={}", bucket, key);
+        if (contentLength >= 0 && contentLength <= multipartThreshold.toBytes()) {
+            PutObjectRequest req = PutObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType(contentType)
+                    .contentLength(contentLength)
+                    .build();
+            s3.putObject(req, RequestBody.fromInputStream(in, contentLength));
+        } else {
+            uploadMultipart(key, in, contentType);
+        }
+        log.debug("storage.uploadLicense bucket={} key={} size={}", bucket, key, contentLength);
         return "s3://" + bucket + "/" + key;
     }
 
+    private void uploadMultipart(String key, InputStream in, String contentType) throws IOException {
+        String uploadId = s3.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                .bucket(bucket).key(key).contentType(contentType).build()).uploadId();
+        try {
+            List<CompletedPart> parts = new ArrayList<>();
+            byte[] buffer = new byte[(int) partSize.toBytes()];
+            for (int n; (n = in.readNBytes(buffer, 0, buffer.length)) > 0 || parts.isEmpty(); ) {
+                int partNumber = parts.size() + 1;
+                String etag = s3.uploadPart(UploadPartRequest.builder()
+                                .bucket(bucket).key(key).uploadId(uploadId).partNumber(partNumber).contentLength((long) n).build(),
+                        RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, n), n)).eTag();
+                parts.add(CompletedPart.builder().partNumber(partNumber).eTag(etag).build());
+                if (n < buffer.length) break;
+            }
+            s3.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucket).key(key).uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                    .build());
+            log.debug("storage.uploadLicense.multipart key={} parts={}", key, parts.size());
+        } catch (IOException | RuntimeException e) {
+            s3.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build());
+            throw e;
+        }
+    }
+
+    /** Presigned PUT for a license image uploaded by the client directly to storage. */
+    public record PresignedUpload(String licenseKey, String uploadUrl, Map<String, String> headers, Instant expiresAt) {}
+
+    /**
+     * Issues a presigned PUT URL for a new license object under the user's upload prefix. The returned
+     * {@code licenseKey} is what {@code POST /api/bookings} accepts from that user once the image is uploaded.
+     */
+    public PresignedUpload presignLicenseUpload(UUID userId, String originalFilename, String contentType) {
+        ensureBucket();
+        String key = userUploadPrefix(userId) + UUID.randomUUID() + "-" + sanitize(originalFilename);
+        PresignedPutObjectRequest presigned = presigner.presignPutObject(PutObjectPresignRequest.builder()
+                .signatureDuration(uploadUrlTtl)
+                .putObjectRequest(PutObjectRequest.builder().bucket(bucket).key(key).contentType(contentType).build())
+                .build());
+        Map<String, String> headers = new LinkedHashMap<>();
+        presigned.signedHeaders().forEach((name, values) -> {
+            if (!name.equalsIgnoreCase("host")) headers.put(name, String.join(",", values));
+        });
+        log.debug("storage.presignLicenseUpload bucket={} key={} expiresAt={}", bucket, key, presigned.expiration());
+        return new PresignedUpload("s3://" + bucket + "/" + key, presigned.url().toString(), headers, presigned.expiration());
+    }
+
+    /**
+     * Checks a client-supplied license key: it must name an uploaded object under the user's upload prefix in
+     * this bucket (HEAD, no download) no larger than {@code LICENSE_MAX_SIZE}. Another user's key is refused.
+     */
+    public boolean isUploadedLicense(String licenseKey, UUID userId) {
+        String prefix = "s3://" + bucket + "/";
+        if (licenseKey == null || !licenseKey.startsWith(prefix + userUploadPrefix(userId)) || licenseKey.contains("..")) return false;
+        try {
+            HeadObjectResponse head = s3.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket).key(licenseKey.substring(prefix.length())).build());
+            return head.contentLength() != null && head.contentLength() > 0 && head.contentLength() <= maxLicenseSize.toBytes();
+        } catch (NoSuchKeyException e) {
+            return false;
+        } catch (S3Exception e) {
+            if (e.statusCode() == 404) return false;
+            throw e;
+        }
+    }
+
+    /** Removes an uploaded license no booking refers to. Best effort: a failure is only logged. */
+    public void deleteLicense(String licenseKey) {
+        String prefix = "s3://" + bucket + "/";
+        if (licenseKey == null || !licenseKey.startsWith(prefix)) return;
+        try {
+            s3.deleteObject(DeleteObjectRequest.builder().bucket(bucket).key(licenseKey.substring(prefix.length())).build());
+            log.debug("storage.deleteLicense key={}", licenseKey);
+        } catch (RuntimeException e) {
+            log.warn("storage.deleteLicense.failed key={} err={}", licenseKey, e.toString());
+        }
+    }
+
+    // Presigned uploads only; server-side uploads stay directly under uploads/ and are never accepted as a licenseKey
+    private static String userUploadPrefix(UUID userId) {
+        return "uploads/" + userId + "/";
+    }
+
     private String sanitize(String name) {
         if (name == null) name = "license.jpg";
         return URLEncoder.encode(name, StandardCharsets.UTF_8);
@@ -22,7 +22,7 @@ public class UserService {
 
     private final UserAccountRepository users;
     private final VerificationTokenRepository tokens;
-    private final EmailService emailService;
+    private final EmailOutbox emailOutbox;
     private final BCryptPasswordEncoder encoder = new BCryptPasswordEncoder();
 
     @Transactional
@@ -51,10 +51,11 @@ public class UserService {
 
         String link = baseUrl + "/api/auth/verify?token=" + token.getToken();
         log.debug("user.register.token_created userId={} token.preview={}", u.getId(), token.getToken().substring(0, 8));
-        emailService.send(email, "Verify your Car Rental account",
+        // Sent by the outbox relay once this transaction commits
+        emailOutbox.enqueue(new EmailOutbox.Message(email, "Verify your Car Rental account",
                 "<p>Hello " + (firstName != null ? firstName : "") + ",</p>" +
                         "<p>Please verify your email by clicking the link below:</p>" +
-                        "<p><a href=\"" + link + "\">Verify Email</a></p>");
+                        "<p><a href=\"" + link + "\">Verify Email</a></p>"));
         return u;
     }
 
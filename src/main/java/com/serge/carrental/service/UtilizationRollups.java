@@ -0,0 +1,211 @@
+package com.serge.carrental.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.serge.carrental.domain.BookingStatus;
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Daily booking rollups in {@code booking_daily_rollup}: per car type, UTC day and status, the number of bookings
+ * overlapping the day, their hours within it and their revenue pro rata to those hours. Every booking write applies
+ * its delta in the same transaction ({@link #apply}), so reports read O(days × types) rows instead of bookings.
+ * {@link #rebuild} recomputes the table from bookings, e.g. after a manual data fix.
+ */
+@Service
+@RequiredArgsConstructor
+public class UtilizationRollups {
+    private static final Logger log = LoggerFactory.getLogger(UtilizationRollups.class);
+
+    /** Statuses whose bookings had (or will have) a car on the road. */
+    public static final List<String> UTILIZED_STATUSES = List.of(
+            BookingStatus.TO_CONFIRM.name(), BookingStatus.BOOKED.name(), BookingStatus.OCCUPIED.name(), BookingStatus.FINISHED.name());
+
+    private static final String UPSERT = """
+            INSERT INTO booking_daily_rollup (type_id, day, status, bookings, booked_hours, revenue)
+            VALUES (?, ?, ?, ?, ?, ?)
+            ON CONFLICT (type_id, day, status) DO UPDATE
+            SET bookings = booking_daily_rollup.bookings + EXCLUDED.bookings,
+                booked_hours = booking_daily_rollup.booked_hours + EXCLUDED.booked_hours,
+                revenue = booking_daily_rollup.revenue + EXCLUDED.revenue
+            """;
+
+    private static final String BACKFILL = """
+            INSERT INTO booking_daily_rollup (type_id, day, status, bookings, booked_hours, revenue)
+            SELECT b.type_id, CAST(d.day AS date), b.status, COUNT(*),
+                   SUM(EXTRACT(EPOCH FROM LEAST(b.end_ts, d.day + interval '1 day') - GREATEST(b.start_ts, d.day)) / 3600),
+                   SUM(b.total * EXTRACT(EPOCH FROM LEAST(b.end_ts, d.day + interval '1 day') - GREATEST(b.start_ts, d.day))
+                               / EXTRACT(EPOCH FROM b.end_ts - b.start_ts))
+            FROM bookings b
+            CROSS JOIN LATERAL generate_series(date_trunc('day', b.start_ts), b.end_ts - interval '1 microsecond', interval '1 day') AS d(day)
+            WHERE b.end_ts > b.start_ts
+            GROUP BY b.type_id, d.day, b.status
+            """;
+
+    private final JdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+
+    /** A booking entering {@code to} from {@code from} (null for a new booking). */
+    public record Change(String typeId, OffsetDateTime start, OffsetDateTime end, BigDecimal total,
+                         BookingStatus from, BookingStatus to) {}
+
+    public record Day(LocalDate day, String typeId, long bookings, double bookedHours, BigDecimal revenue) {}
+
+    private record Delta(String typeId, LocalDate day, String status, int bookings, BigDecimal hours, BigDecimal revenue) {}
+
+    /** Moves the booking's per-day figures from its old status row to its new one. Runs in the caller's transaction. */
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void apply(String typeId, OffsetDateTime start, OffsetDateTime end, BigDecimal total, BookingStatus from, BookingStatus to) {
+        applyAll(List.of(new Change(typeId, start, end, total, from, to)));
+    }
+
+    @Transactional(propagation = Propagation.MANDATORY)
+    public void applyAll(List<Change> changes) {
+        List<Delta> deltas = new ArrayList<>();
+        for (Change c : changes) {
+            if (c.from() == c.to()) continue;
+            for (Delta d : split(c)) {
+                if (c.from() != null) deltas.add(new Delta(d.typeId(), d.day(), c.from().name(), -1, d.hours().negate(), d.revenue().negate()));
+                deltas.add(new Delta(d.typeId(), d.day(), c.to().name(), 1, d.hours(), d.revenue()));
+            }
+        }
+        if (deltas.isEmpty()) return;
+        // Same row order in every transaction, so concurrent writers queue on the row locks instead of deadlocking
+        deltas.sort(Comparator.comparing(Delta::typeId).thenComparing(Delta::day).thenComparing(Delta::status));
+        jdbc.batchUpdate(UPSERT, deltas.stream()
+                .map(d -> new Object[]{d.typeId(), d.day(), d.status(), d.bookings(), d.hours(), d.revenue()})
+                .toList());
+    }
+
+    // One entry per UTC day the booking overlaps, with its hours and revenue share for that day
+    private static List<Delta> split(Change c) {
+        Instant start = c.start().toInstant();
+        Instant end = c.end().toInstant();
+        long totalSeconds = Duration.between(start, end).toSeconds();
+        List<Delta> out = new ArrayList<>();
+        if (totalSeconds <= 0) return out;
+        BigDecimal total = c.total() == null ? BigDecimal.ZERO : c.total();
+        for (Instant day = start.truncatedTo(ChronoUnit.DAYS); day.isBefore(end); day = day.plus(1, ChronoUnit.DAYS)) {
+            Instant from = start.isAfter(day) ? start : day;
+            Instant next = day.plus(1, ChronoUnit.DAYS);
+            long seconds = Duration.between(from, end.isBefore(next) ? end : next).toSeconds();
+            out.add(new Delta(c.typeId(), LocalDate.ofInstant(day, ZoneOffset.UTC), null, 1,
+                    BigDecimal.valueOf(seconds).divide(BigDecimal.valueOf(3600), 4, RoundingMode.HALF_UP),
+                    total.multiply(BigDecimal.valueOf(seconds)).divide(BigDecimal.valueOf(totalSeconds), 4, RoundingMode.HALF_UP)));
+        }
+        return out;
+    }
+
+    /**
+     * Recomputes every rollup from bookings. Booking writes wait for it (SHARE lock on bookings), so none of their
+     * deltas is lost or counted twice. Runs in its own transaction (not a proxied {@code @Transactional}, so the
+     * scheduled call from this bean gets one too).
+     */
+    public int rebuild() {
+        return Objects.requireNonNull(tx.execute(s -> rebuildLocked()));
+    }
+
+    private int rebuildLocked() {
+        long started = System.nanoTime();
+        jdbc.execute("LOCK TABLE bookings IN SHARE MODE");
+        jdbc.update("DELETE FROM booking_daily_rollup");
+        int rows = jdbc.update(BACKFILL);
+        log.info("rollups.rebuild rows={} duration_ms={}", rows, (System.nanoTime() - started) / 1_000_000);
+        return rows;
+    }
+
+    /** Scheduled rebuild, off unless {@code ROLLUP_REBUILD_CRON} is set. */
+    @Scheduled(cron = "${ROLLUP_REBUILD_CRON:-}", zone = "UTC")
+    public void scheduledRebuild() {
+        rebuild();
+    }
+
+    /** Per day in [from, to) and type, the figures of utilized bookings; days without any are omitted. */
+    public List<Day> daily(LocalDate from, LocalDate to) {
+        return jdbc.query("""
+                SELECT day, type_id, SUM(bookings) AS bookings, SUM(booked_hours) AS booked_hours, SUM(revenue) AS revenue
+                FROM booking_daily_rollup
+                WHERE day >= ? AND day < ? AND status IN (%s)
+                GROUP BY day, type_id
+                HAVING SUM(bookings) > 0
+                ORDER BY day, type_id
+                """.formatted(placeholders(UTILIZED_STATUSES.size())),
+                (rs, i) -> new Day(rs.getObject("day", LocalDate.class), rs.getString("type_id"), rs.getLong("bookings"),
+                        rs.getDouble("booked_hours"), rs.getBigDecimal("revenue").setScale(2, RoundingMode.HALF_UP)),
+                args(from, to).toArray());
+    }
+
+    /**
+     * Hours of utilized bookings within [from, to) per car type. Whole UTC days come from the rollups; the partial
+     * days at either end are intersected exactly with the bookings overlapping them.
+     */
+    public Map<String, Double> bookedHours(OffsetDateTime from, OffsetDateTime to) {
+        Map<String, Double> hours = new HashMap<>();
+        if (!from.isBefore(to)) return hours;
+        OffsetDateTime firstDay = from.truncatedTo(ChronoUnit.DAYS);
+        if (firstDay.isBefore(from)) firstDay = firstDay.plusDays(1);
+        OffsetDateTime lastDay = to.truncatedTo(ChronoUnit.DAYS);
+        List<OffsetDateTime[]> edges = new ArrayList<>();
+        if (firstDay.isAfter(lastDay)) {
+            // Within a single day
+            edges.add(new OffsetDateTime[]{from, to});
+        } else {
+            if (from.isBefore(firstDay)) edges.add(new OffsetDateTime[]{from, firstDay});
+            if (lastDay.isBefore(to)) edges.add(new OffsetDateTime[]{lastDay, to});
+            if (firstDay.isBefore(lastDay)) {
+                jdbc.query("""
+                        SELECT type_id, SUM(booked_hours) AS hours
+                        FROM booking_daily_rollup
+                        WHERE day >= ? AND day < ? AND status IN (%s)
+                        GROUP BY type_id
+                        """.formatted(placeholders(UTILIZED_STATUSES.size())),
+                        (RowCallbackHandler) rs -> hours.merge(rs.getString("type_id"), rs.getDouble("hours"), Double::sum),
+                        args(firstDay.toLocalDate(), lastDay.toLocalDate()).toArray());
+            }
+        }
+        if (!edges.isEmpty()) {
+            List<Object> args = new ArrayList<>();
+            String slices = edges.stream().map(e -> {
+                args.add(e[0]);
+                args.add(e[1]);
+                return "(tsrange(CAST(? AS timestamp), CAST(? AS timestamp), '[)'))";
+            }).collect(Collectors.joining(", "));
+            args.addAll(UTILIZED_STATUSES);
+            jdbc.query("""
+                    SELECT b.type_id, SUM(EXTRACT(EPOCH FROM upper(b.time_range * s.r) - lower(b.time_range * s.r))) / 3600 AS hours
+                    FROM (VALUES %s) AS s(r)
+                    JOIN bookings b ON b.time_range && s.r
+                    WHERE b.status IN (%s)
+                    GROUP BY b.type_id
+                    """.formatted(slices, placeholders(UTILIZED_STATUSES.size())),
+                    (RowCallbackHandler) rs -> hours.merge(rs.getString("type_id"), rs.getDouble("hours"), Double::sum),
+                    args.toArray());
+        }
+        return hours;
+    }
+
+    private static List<Object> args(LocalDate from, LocalDate to) {
+        List<Object> args = new ArrayList<>();
+        args.add(from);
+        args.add(to);
+        args.addAll(UTILIZED_STATUSES);
+        return args;
+    }
+
+    private static String placeholders(int n) {
+        return String.join(", ", Collections.nCopies(n, "?"));
+    }
+}
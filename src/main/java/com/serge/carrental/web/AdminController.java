@@ -2,21 +2,37 @@ package com.serge.carrental.web;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import com.serge.carrental.config.threads.VirtualThreadPinningMonitor;
 import com.serge.carrental.domain.Booking;
 import com.serge.carrental.domain.BookingStatus;
 import com.serge.carrental.domain.CarType;
+import com.serge.carrental.repo.AdminBookingQueries;
 import com.serge.carrental.repo.BookingRepository;
 import com.serge.carrental.repo.CarTypeRepository;
+import com.serge.carrental.service.AvailabilityService;
+import com.serge.carrental.service.BookingChangedEvent;
+import com.serge.carrental.service.BookingCube;
+import com.serge.carrental.service.BookingExport;
+import com.serge.carrental.service.CapacityLedger;
+import com.serge.carrental.service.UtilizationRollups;
 import jakarta.validation.constraints.NotNull;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.Sort;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
 import java.time.Duration;
+import java.time.LocalDate;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
@@ -27,27 +43,99 @@ import java.util.stream.Collectors;
 @RequiredArgsConstructor
 public class AdminController {
     private static final Logger log = LoggerFactory.getLogger(AdminController.class);
+    private static final int MAX_PAGE_SIZE = 500;
     private final BookingRepository bookingRepository;
     private final CarTypeRepository carTypeRepository;
+    private final AdminBookingQueries adminBookingQueries;
+    private final BookingExport bookingExport;
+    private final AvailabilityService availabilityService;
+    private final ApplicationEventPublisher events;
+    private final CapacityLedger capacityLedger;
+    private final VirtualThreadPinningMonitor pinningMonitor;
+    private final UtilizationRollups utilizationRollups;
+    private final BookingCube bookingCube;
 
+    /**
+     * Bookings overlapping [from, to), newest first, at most {@code limit} (capped at {@value #MAX_PAGE_SIZE}) per page.
+     * If there are more, the {@code X-Next-Cursor} header holds the {@code cursor} value for the next page.
+     */
     @GetMapping("/bookings")
-    public List<AdminBookingItem> listBookings(
+    public ResponseEntity<?> listBookings(
             @RequestParam(required = false) BookingStatus status,
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime from,
-            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime to
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime to,
+            @RequestParam(defaultValue = "50") int limit,
+            @RequestParam(required = false) String cursor
+    ) {
+        OffsetDateTime f = from.withOffsetSameInstant(ZoneOffset.UTC);
+        OffsetDateTime t = to.withOffsetSameInstant(ZoneOffset.UTC);
+        log.info("admin.bookings.list status={} from={} to={} limit={} cursor={}", status, f, t, limit, cursor);
+        if (limit < 1) return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "limit must be positive"));
+        int pageSize = Math.min(limit, MAX_PAGE_SIZE);
+        AdminBookingQueries.Cursor after;
+        try {
+            after = cursor == null ? null : decodeCursor(cursor);
+        } catch (IllegalArgumentException | DateTimeException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "INVALID_CURSOR"));
+        }
+        // One more row than asked tells whether there is a next page
+        List<AdminBookingQueries.Row> rows = adminBookingQueries.page(status == null ? null : status.name(), f, t, after, pageSize + 1);
+        boolean more = rows.size() > pageSize;
+        List<AdminBookingItem> items = rows.stream().limit(pageSize).map(AdminBookingItem::from).collect(Collectors.toList());
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok();
+        if (more) {
+            AdminBookingQueries.Row last = rows.get(pageSize - 1);
+            ok.header("X-Next-Cursor", encodeCursor(new AdminBookingQueries.Cursor(last.createdAt(), last.id())));
+        }
+        return ok.body(items);
+    }
+
+    /**
+     * All bookings overlapping [from, to) as CSV or NDJSON, streamed from a database cursor while it is read.
+     * {@code gzip=true} compresses the body ({@code Content-Encoding: gzip}).
+     */
+    @GetMapping("/bookings/export")
+    public ResponseEntity<?> exportBookings(
+            @RequestParam(required = false) BookingStatus status,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime to,
+            @RequestParam(defaultValue = "csv") String format,
+            @RequestParam(defaultValue = "false") boolean gzip
     ) {
         OffsetDateTime f = from.withOffsetSameInstant(ZoneOffset.UTC);
         OffsetDateTime t = to.withOffsetSameInstant(ZoneOffset.UTC);
-        log.info("admin.bookings.list status={} from={} to={}", status, f, t);
-        return bookingRepository.findForAdmin(status == null ? null : status.name(), f, t)
-                .stream().map(AdminBookingItem::from).collect(Collectors.toList());
+        log.info("admin.bookings.export status={} from={} to={} format={} gzip={}", status, f, t, format, gzip);
+        BookingExport.Format fmt;
+        try {
+            fmt = BookingExport.Format.valueOf(format.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "format must be csv or ndjson"));
+        }
+        StreamingResponseBody body = out -> bookingExport.write(out, fmt, gzip, status == null ? null : status.name(), f, t);
+        ResponseEntity.BodyBuilder ok = ResponseEntity.ok()
+                .contentType(fmt == BookingExport.Format.CSV ? new MediaType("text", "csv", StandardCharsets.UTF_8) : MediaType.parseMediaType("application/x-ndjson"))
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"bookings." + fmt.name().toLowerCase() + "\"");
+        if (gzip) ok.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        return ok.body(body);
+    }
+
+    private static String encodeCursor(AdminBookingQueries.Cursor c) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((c.createdAt() + "|" + c.id()).getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static AdminBookingQueries.Cursor decodeCursor(String cursor) {
+        String[] p = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\\|");
+        if (p.length != 2) throw new IllegalArgumentException("malformed cursor");
+        return new AdminBookingQueries.Cursor(OffsetDateTime.parse(p[0]), UUID.fromString(p[1]));
     }
 
     @PostMapping("/bookings/{id}/confirm")
     @Transactional
     public ResponseEntity<?> confirm(@PathVariable UUID id, @RequestBody ConfirmBody body) {
-        Booking b = bookingRepository.findById(id).orElseThrow(() -> new NoSuchElementException("Not found"));
+        Booking b = bookingRepository.findByIdForUpdate(id).orElseThrow(() -> new NoSuchElementException("Not found"));
         if (b.getStatus() != BookingStatus.TO_CONFIRM) return ResponseEntity.badRequest().body(Map.of("error","INVALID_STATE"));
+        BookingStatus previous = b.getStatus();
         b.setCarRegistrationNumber(body.getCarRegistrationNumber());
         OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
         if (now.isAfter(b.getStartTs()) && now.isBefore(b.getEndTs())) {
@@ -57,6 +145,8 @@ public class AdminController {
         }
         b.setUpdatedAt(OffsetDateTime.now(ZoneOffset.UTC));
         bookingRepository.save(b);
+        utilizationRollups.apply(b.getCarType().getId(), b.getStartTs(), b.getEndTs(), b.getTotal(), previous, b.getStatus());
+        events.publishEvent(new BookingChangedEvent(b.getId(), b.getCarType().getId(), b.getStartTs(), b.getEndTs(), previous, b.getStatus()));
         log.info("admin.bookings.confirm.success id={} newStatus={}", id, b.getStatus());
         return ResponseEntity.ok(Map.of(
                 "status", b.getStatus().name(),
@@ -68,16 +158,27 @@ public class AdminController {
     @Transactional
     public ResponseEntity<?> reject(@PathVariable UUID id) {
         log.info("admin.bookings.reject id={}", id);
-        Booking b = bookingRepository.findById(id).orElseThrow(() -> new NoSuchElementException("Not found"));
-        if (b.getStatus() == BookingStatus.CANCELLED || b.getStatus() == BookingStatus.REJECTED || b.getStatus() == BookingStatus.FINISHED)
+        // Locked, so a concurrent cancel or hold expiry can't release the same ledger units again
+        Booking b = bookingRepository.findByIdForUpdate(id).orElseThrow(() -> new NoSuchElementException("Not found"));
+        if (b.getStatus() == BookingStatus.CANCELLED || b.getStatus() == BookingStatus.REJECTED || b.getStatus() == BookingStatus.FINISHED
+                || b.getStatus() == BookingStatus.EXPIRED)
             return ResponseEntity.badRequest().body(Map.of("error","INVALID_STATE"));
+        BookingStatus previous = b.getStatus();
+        if (previous.isActive()) capacityLedger.release(b.getCarType().getId(), b.getStartTs(), b.getEndTs());
         b.setStatus(BookingStatus.REJECTED);
+        b.setHoldExpiresAt(null);
         b.setUpdatedAt(OffsetDateTime.now(ZoneOffset.UTC));
         bookingRepository.save(b);
+        utilizationRollups.apply(b.getCarType().getId(), b.getStartTs(), b.getEndTs(), b.getTotal(), previous, b.getStatus());
+        events.publishEvent(new BookingChangedEvent(b.getId(), b.getCarType().getId(), b.getStartTs(), b.getEndTs(), previous, b.getStatus()));
         log.info("admin.bookings.reject.success id={}", id);
         return ResponseEntity.ok(Map.of("status", b.getStatus().name()));
     }
 
+    /**
+     * Booked hours per car type within [from, to), before and after now, from the daily rollups (whole days) and the
+     * bookings overlapping the partial days at the window edges. Counts TO_CONFIRM, BOOKED, OCCUPIED and FINISHED.
+     */
     @GetMapping("/stats")
     public List<AdminTypeStats> stats(
             @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime from,
@@ -87,31 +188,87 @@ public class AdminController {
         OffsetDateTime t = to.withOffsetSameInstant(ZoneOffset.UTC);
         log.info("admin.stats from={} to={}", f, t);
         long windowHours = Math.max(1, Duration.between(f, t).toHours());
-        Map<String, AdminTypeStats> out = new LinkedHashMap<>();
-        for (CarType ct : carTypeRepository.findAll()) {
-            out.put(ct.getId(), new AdminTypeStats(ct.getId(), 0d, 0d, 0d));
+        OffsetDateTime now = OffsetDateTime.now(ZoneOffset.UTC);
+        Map<String, Double> past = utilizationRollups.bookedHours(f, now.isBefore(t) ? now : t);
+        Map<String, Double> future = utilizationRollups.bookedHours(now.isAfter(f) ? now : f, t);
+        List<AdminTypeStats> out = new ArrayList<>();
+        for (CarType type : carTypeRepository.findAll(Sort.by("id"))) {
+            double hoursPast = past.getOrDefault(type.getId(), 0.0);
+            double denom = windowHours * type.getTotalQuantity();
+            out.add(new AdminTypeStats(type.getId(), hoursPast, future.getOrDefault(type.getId(), 0.0),
+                    denom == 0 ? 0 : (hoursPast / denom) * 100.0));
         }
-        // naive aggregation in-memory
-        for (Booking b : bookingRepository.findForAdmin(null, f, t)) {
-            double pastOverlapHours = overlapHours(b.getStartTs(), b.getEndTs(), f, OffsetDateTime.now(ZoneOffset.UTC).isAfter(t)? t : OffsetDateTime.now(ZoneOffset.UTC));
-            double futureOverlapHours = overlapHours(b.getStartTs(), b.getEndTs(), OffsetDateTime.now(ZoneOffset.UTC), t);
-            AdminTypeStats s = out.get(b.getCarType().getId());
-            s.setHoursBookedPast(s.getHoursBookedPast() + Math.max(0, pastOverlapHours));
-            s.setHoursBookedFuture(s.getHoursBookedFuture() + Math.max(0, futureOverlapHours));
+        return out;
+    }
+
+    /**
+     * Per UTC day in [from, to) and car type with utilized bookings: their count, booked hours, revenue (each
+     * booking's total spread over its hours) and the share of the type's fleet-hours booked.
+     */
+    @GetMapping("/reports/daily")
+    public ResponseEntity<?> dailyReport(
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) LocalDate to
+    ) {
+        log.info("admin.reports.daily from={} to={}", from, to);
+        if (!from.isBefore(to)) return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "from must be before to"));
+        Map<String, Integer> quantities = carTypeRepository.findAll().stream()
+                .collect(Collectors.toMap(CarType::getId, CarType::getTotalQuantity));
+        List<DailyTypeReport> out = new ArrayList<>();
+        for (UtilizationRollups.Day d : utilizationRollups.daily(from, to)) {
+            int quantity = quantities.getOrDefault(d.typeId(), 0);
+            out.add(new DailyTypeReport(d.day(), d.typeId(), d.bookings(), d.bookedHours(), d.revenue(),
+                    quantity == 0 ? 0 : d.bookedHours() / (24.0 * quantity) * 100.0));
         }
-        for (CarType ct : carTypeRepository.findAll()) {
-            AdminTypeStats s = out.get(ct.getId());
-            double denom = windowHours * ct.getTotalQuantity();
-            s.setPastUtilizationPercent(denom == 0 ? 0 : (s.getHoursBookedPast() / denom) * 100.0);
+        return ResponseEntity.ok(out);
+    }
+
+    /** Recomputes the daily rollups from bookings. */
+    @PostMapping("/reports/rollups/rebuild")
+    public Map<String, Object> rebuildRollups() {
+        log.info("admin.reports.rollups.rebuild");
+        return Map.of("rows", utilizationRollups.rebuild());
+    }
+
+    /**
+     * Ad-hoc aggregation over the in-memory bookings snapshot, grouped by any of {@code type, status, weekday, hour,
+     * month, leadDays, durationDays} and filtered by window, types and statuses. {@code measure=bookings} gives
+     * count, hours, revenue and mean lead time per group; {@code measure=occupancy} booked against available hours.
+     */
+    @GetMapping("/analytics/bookings")
+    public ResponseEntity<?> analytics(
+            @RequestParam(required = false) List<String> groupBy,
+            @RequestParam(defaultValue = "bookings") String measure,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime to,
+            @RequestParam(required = false) Set<String> typeId,
+            @RequestParam(required = false) Set<BookingStatus> status
+    ) {
+        log.info("admin.analytics groupBy={} measure={} from={} to={} typeId={} status={}", groupBy, measure, from, to, typeId, status);
+        try {
+            BookingCube.Result r = bookingCube.query(new BookingCube.Query(
+                    groupBy == null ? List.of() : groupBy.stream().map(BookingCube.Dimension::of).toList(),
+                    BookingCube.Measure.valueOf(measure.toUpperCase()),
+                    from, to,
+                    typeId == null ? Set.of() : typeId,
+                    status == null ? Set.of() : status));
+            log.info("admin.analytics.done rows={} groups={} duration_ms={}", r.rows(), r.groups().size(), r.durationMs());
+            return ResponseEntity.ok(r);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(503).body(Map.of("error", "ANALYTICS_NOT_READY"));
         }
-        return new ArrayList<>(out.values());
     }
 
-    private static long overlapHours(OffsetDateTime aStart, OffsetDateTime aEnd, OffsetDateTime bStart, OffsetDateTime bEnd) {
-        OffsetDateTime start = aStart.isAfter(bStart) ? aStart : bStart;
-        OffsetDateTime end = aEnd.isBefore(bEnd) ? aEnd : bEnd;
-        if (end.isBefore(start)) return 0;
-        return Math.max(0, Duration.between(start, end).toHours());
+    @GetMapping("/cache/availability")
+    public Map<String, Object> availabilityCacheStats() {
+        return availabilityService.localCacheStats();
+    }
+
+    @GetMapping("/threads/pinning")
+    public List<Map<String, Object>> virtualThreadPinning() {
+        return pinningMonitor.hotspots();
     }
 
     // DTOs
@@ -134,24 +291,42 @@ public class AdminController {
         private BigDecimal pricePerDay;
         private BigDecimal total;
 
-        public static AdminBookingItem from(Booking b) {
+        public static AdminBookingItem from(AdminBookingQueries.Row r) {
             AdminBookingItem i = new AdminBookingItem();
-            i.bookingId = b.getId();
-            i.status = b.getStatus().name();
-            i.userEmail = b.getUser().getEmail();
-            i.userPhone = b.getUser().getPhone();
-            i.typeId = b.getCarType().getId();
-            i.start = b.getStartTs();
-            i.end = b.getEndTs();
-            i.licenseImageUrlOrKey = b.getLicenseKey();
-            i.carRegistrationNumber = b.getCarRegistrationNumber();
-            i.days = b.getDays();
-            i.pricePerDay = b.getPricePerDay();
-            i.total = b.getTotal();
+            i.bookingId = r.id();
+            i.status = r.status();
+            i.userEmail = r.userEmail();
+            i.userPhone = r.userPhone();
+            i.typeId = r.typeId();
+            i.start = r.start();
+            i.end = r.end();
+            i.licenseImageUrlOrKey = r.licenseKey();
+            i.carRegistrationNumber = r.carRegistrationNumber();
+            i.days = r.days();
+            i.pricePerDay = r.pricePerDay();
+            i.total = r.total();
             return i;
         }
     }
     @Data
+    public static class DailyTypeReport {
+        private LocalDate day;
+        private String typeId;
+        private Long bookings;
+        private Double bookedHours;
+        private BigDecimal revenue;
+        private Double utilizationPercent;
+
+        public DailyTypeReport(LocalDate day, String typeId, long bookings, double bookedHours, BigDecimal revenue, double util) {
+            this.day = day;
+            this.typeId = typeId;
+            this.bookings = bookings;
+            this.bookedHours = bookedHours;
+            this.revenue = revenue;
+            this.utilizationPercent = util;
+        }
+    }
+    @Data
     public static class AdminTypeStats {
         @NotNull
         private String typeId;
@@ -8,11 +8,20 @@ import com.serge.carrental.repo.BookingRepository;
 import com.serge.carrental.repo.CarTypeRepository;
 import com.serge.carrental.repo.UserAccountRepository;
 import com.serge.carrental.service.AvailabilityService;
-import com.serge.carrental.service.EmailService;
+import com.serge.carrental.service.BookingAdmission;
+import com.serge.carrental.service.BookingChangedEvent;
+import com.serge.carrental.service.BookingHolds;
+import com.serge.carrental.service.CapacityLedger;
+import com.serge.carrental.service.EmailOutbox;
+import com.serge.carrental.service.IdempotencyService;
 import com.serge.carrental.service.StorageService;
+import com.serge.carrental.service.UtilizationRollups;
 import io.hypersistence.utils.hibernate.type.range.Range;
+import jakarta.annotation.PreDestroy;
 import jakarta.transaction.Transactional;
 import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.annotation.AuthenticationPrincipal;
@@ -20,10 +29,15 @@ import org.springframework.security.oauth2.jwt.Jwt;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.InputStream;
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 @RestController
 @RequestMapping("/api/bookings")
@@ -35,84 +49,341 @@ public class BookingController {
     private final UserAccountRepository userRepo;
     private final AvailabilityService availabilityService;
     private final StorageService storageService;
-    private final EmailService emailService;
+    private final ApplicationEventPublisher events;
+    private final CapacityLedger capacityLedger;
+    private final BookingAdmission bookingAdmission;
+    private final IdempotencyService idempotencyService;
+    private final BookingHolds bookingHolds;
+    private final UtilizationRollups utilizationRollups;
+    // Independent create steps (user lookup, license upload) run on their own virtual threads
+    private final ExecutorService steps = Executors.newVirtualThreadPerTaskExecutor();
 
-    @PostMapping(consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
-    @Transactional
+    @Value("${BOOKING_CREATE_LOOKUP_TIMEOUT:5s}")
+    private Duration lookupTimeout;
+    @Value("${BOOKING_CREATE_UPLOAD_TIMEOUT:60s}")
+    private Duration uploadTimeout;
+    @Value("${BOOKING_CREATE_ADMISSION_TIMEOUT:10s}")
+    private Duration admissionTimeout;
+
+    // Not transactional: admission commits on its own, and a request waiting for its batch must not hold a connection
+    // The license is either uploaded with the request (driverLicense) or beforehand via a presigned URL (licenseKey)
+    // With an Idempotency-Key, a retry of a created booking gets the same booking back and a concurrent duplicate
+    // waits for the first request's outcome instead of booking twice
+    @PostMapping(consumes = {MediaType.MULTIPART_FORM_DATA_VALUE, MediaType.APPLICATION_FORM_URLENCODED_VALUE})
     public ResponseEntity<?> create(
             @RequestParam("typeId") String typeId,
             @RequestParam("start") String startIso,
             @RequestParam("end") String endIso,
-            @RequestParam("driverLicense") MultipartFile driverLicense,
+            @RequestParam(value = "driverLicense", required = false) MultipartFile driverLicense,
+            @RequestParam(value = "licenseKey", required = false) String uploadedLicenseKey,
+            @RequestHeader(value = "Idempotency-Key", required = false) String idempotencyKey,
             @AuthenticationPrincipal Jwt jwt
     ) throws Exception {
+        IdempotencyService.Claim claim = null;
+        Future<UserAccount> userLookup = null;
+        LicenseStep license = null;
+        boolean created = false;
         try {
             log.info("bookings.create typeId={} start={} end={}", typeId, startIso, endIso);
-            // Payload hash for idempotency
+            if (idempotencyKey != null && (idempotencyKey.isBlank() || idempotencyKey.length() > 100))
+                return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "Idempotency-Key must be 1-100 characters"));
 
-            CarType type = carTypeRepository.findById(typeId).orElseThrow(() -> new NoSuchElementException("No such car type"));
             OffsetDateTime start = OffsetDateTime.parse(startIso).withOffsetSameInstant(ZoneOffset.UTC);
             OffsetDateTime end = OffsetDateTime.parse(endIso).withOffsetSameInstant(ZoneOffset.UTC);
             if (!end.isAfter(start))
                 return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "end must be after start"));
+            boolean hasFile = driverLicense != null && !driverLicense.isEmpty();
+            if (hasFile == (uploadedLicenseKey != null))
+                return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "exactly one of driverLicense or licenseKey is required"));
 
+            // Resolve user by JWT subject (email in "sub" or "email"), beside the car type lookup
+            String email = jwt.getClaimAsString("email") != null ? jwt.getClaimAsString("email") : jwt.getSubject();
+            userLookup = steps.submit(() -> userRepo.findByEmail(email).orElseThrow(() -> new NoSuchElementException("User not found")));
+            CarType type = carTypeRepository.findById(typeId).orElseThrow(() -> new NoSuchElementException("No such car type"));
 
+            // Fail fast before paying for the upload; admission below stays the authoritative check.
+            // A sold-out request with an Idempotency-Key may still be a replay, so it is answered once the key is checked.
+            boolean full = bookingAdmission.certainlyFull(type.getId(), type.getTotalQuantity(), start, end);
+            if (full && idempotencyKey == null) {
+                log.info("bookings.create.no_availability (precheck) typeId={} start={} end={}", typeId, start, end);
+                return ResponseEntity.status(409).body(Map.of("error", "NO_AVAILABILITY", "message", "No cars available for the requested range"));
+            }
 
-            // Upload license
-            String licenseKey = storageService.uploadLicense(driverLicense.getBytes(), driverLicense.getOriginalFilename(), driverLicense.getContentType());
-            log.debug("bookings.create.license_uploaded key={}", licenseKey);
-
-            // Resolve user by JWT subject (email in "sub" or "email")
-            String email = jwt.getClaimAsString("email");
-            if (email == null) email = jwt.getSubject();
-            UserAccount user =
-                    userRepo.findByEmail(email).orElseThrow(() -> new NoSuchElementException("User not found"));
+            UserAccount user = join(userLookup, lookupTimeout);
             if (!user.isEmailVerified()) return ResponseEntity.status(403).body(Map.of("error", "EMAIL_NOT_VERIFIED"));
             log.debug("bookings.create.user_resolved userId={}", user.getId());
 
+            if (idempotencyKey != null) {
+                // Payload hash for idempotency: the same key with a different request (or user) is rejected
+                String payloadHash = IdempotencyService.hash(user.getId().toString(), typeId, start.toString(), end.toString(),
+                        hasFile ? "file:" + driverLicense.getOriginalFilename() + ":" + driverLicense.getSize() : "key:" + uploadedLicenseKey);
+                claim = idempotencyService.claim(idempotencyKey, payloadHash);
+                switch (claim.outcome()) {
+                    case REPLAY -> {
+                        Booking existing = bookingRepository.findById(claim.bookingId()).orElseThrow(() -> new IllegalStateException("Idempotent booking not found"));
+                        log.info("bookings.create.replayed bookingId={}", existing.getId());
+                        return ResponseEntity.status(201).header("Idempotent-Replayed", "true").body(toResponse(existing));
+                    }
+                    case MISMATCH -> {
+                        return ResponseEntity.unprocessableEntity().body(Map.of("error", "IDEMPOTENCY_KEY_REUSED", "message", "Idempotency-Key was used with a different request"));
+                    }
+                    case IN_PROGRESS -> {
+                        return ResponseEntity.status(409).body(Map.of("error", "IDEMPOTENCY_KEY_IN_PROGRESS", "message", "A request with this Idempotency-Key is still being processed"));
+                    }
+                    case ACQUIRED -> { }
+                }
+            }
+            if (full) {
+                log.info("bookings.create.no_availability (precheck) typeId={} start={} end={}", typeId, start, end);
+                return ResponseEntity.status(409).body(Map.of("error", "NO_AVAILABILITY", "message", "No cars available for the requested range"));
+            }
+
+            // Only now, with the key ours: a replay or a concurrent duplicate never uploads the license
+            license = new LicenseStep(hasFile ? driverLicense : null, uploadedLicenseKey, user.getId());
+            String licenseKey = license.await(uploadTimeout);
+            if (licenseKey == null)
+                return ResponseEntity.badRequest().body(Map.of("error", "INVALID_LICENSE_KEY", "message", "licenseKey does not refer to an uploaded license"));
+            log.debug("bookings.create.license_ready key={}", licenseKey);
+
             int days = AvailabilityService.daysBetweenCeil(start, end);
             BigDecimal total = type.getPricePerDay().multiply(BigDecimal.valueOf(days));
             OffsetDateTime nowUtc = OffsetDateTime.now(ZoneOffset.UTC);
             UUID id = UUID.randomUUID();
-            // Active statuses aligned with AvailabilityService
-            List<String> active = List.of("TO_CONFIRM","BOOKED","OCCUPIED");
-
-            int rows = bookingRepository.tryInsertBooking(
-                    id,
-                    user.getId(),
-                    type.getId(),
-                    BookingStatus.TO_CONFIRM.name(),
-                    start, end,
-                    days,
-                    type.getPricePerDay(),
-                    total,
-                    licenseKey,
-                    nowUtc, nowUtc,
-                    active
-            );
-            if (rows == 0) {
-                log.warn("bookings.create.no_availability (atomic) typeId={} start={} end={}", typeId, start, end);
+
+            // Queued with other requests for the same type; admitted against the capacity ledger and committed in batches
+            boolean admitted;
+            try {
+                admitted = bookingAdmission.admit(new BookingAdmission.NewBooking(
+                        id,
+                        user.getId(),
+                        type.getId(),
+                        BookingStatus.TO_CONFIRM.name(),
+                        start, end,
+                        days,
+                        type.getPricePerDay(),
+                        total,
+                        licenseKey,
+                        null,
+                        nowUtc,
+                        // Booking received email, queued in the admission transaction
+                        new EmailOutbox.Message(user.getEmail(), "Booking received (To Confirm)",
+                                "<p>We received your booking for type <b>" + type.getDisplayName() + "</b></p>" +
+                                        "<p>From: " + start + "<br/>To: " + end + "<br/>Days: " + days + "<br/>Total: $" + total + "</p>" +
+                                        "<p>Status: TO_CONFIRM</p>"),
+                        claim != null && claim.outcome() == IdempotencyService.Outcome.ACQUIRED ? claim : null
+                ), admissionTimeout);
+            } catch (BookingAdmission.AdmissionTimeoutException e) {
+                // A batch already running may still commit the booking: keep its license, and its key for a replay
+                if (e.mayBeAdmitted()) created = true;
+                return ResponseEntity.status(503).body(Map.of("error", "ADMISSION_TIMEOUT", "message", "Booking admission is taking too long, retry later"));
+            }
+            if (!admitted) {
+                log.warn("bookings.create.no_availability (ledger) typeId={} start={} end={}", typeId, start, end);
                 return ResponseEntity.status(409).body(Map.of("error", "NO_AVAILABILITY", "message", "No cars available for the requested range"));
             }
+            // Committed: from here on a failure must not delete the booking's license or free its key
+            created = true;
 
             // Fetch inserted row to build the response (and for logging)
             Booking b = bookingRepository.findById(id).orElseThrow(() -> new IllegalStateException("Inserted booking not found"));
             log.info("bookings.create.saved bookingId={} status={}", b.getId(), b.getStatus());
-            // Send email (booking received)
-            emailService.send(user.getEmail(), "Booking received (To Confirm)",
-                    "<p>We received your booking for type <b>" + type.getDisplayName() + "</b></p>" +
-                            "<p>From: " + start + "<br/>To: " + end + "<br/>Days: " + days + "<br/>Total: $" + total + "</p>" +
-                            "<p>Status: TO_CONFIRM</p>");
-            log.debug("bookings.create.email_sent bookingId={}", b.getId());
-
-            // Optionally invalidate cache (we rely on TTL to keep patch shorter)
+            events.publishEvent(new BookingChangedEvent(b.getId(), type.getId(), start, end, null, b.getStatus()));
+            if (claim != null) idempotencyService.complete(claim, b.getId());
+
             return ResponseEntity.status(201).body(toResponse(b));
         } catch (Exception e){
             log.error("Error in service", e);
             throw e;
+        } finally {
+            if (!created) {
+                // Nothing was booked: stop the steps still running, drop our upload and let a retry use the key
+                if (userLookup != null) userLookup.cancel(true);
+                if (license != null) license.discard();
+                if (claim != null && claim.outcome() == IdempotencyService.Outcome.ACQUIRED) idempotencyService.release(claim);
+            }
         }
     }
 
+    /**
+     * License upload (or presigned key check) on its own virtual thread. {@link #discard} interrupts an upload still
+     * in progress, or deletes the object if the upload already finished, whichever comes first.
+     */
+    private final class LicenseStep {
+        private final AtomicReference<String> uploaded = new AtomicReference<>();
+        private final AtomicBoolean discarded = new AtomicBoolean();
+        private final Future<String> result;
+
+        LicenseStep(MultipartFile file, String presignedKey, UUID ownerId) {
+            result = steps.submit(() -> {
+                // Uploaded by the client through a presigned URL: only check the object exists under the user's prefix
+                if (file == null) return storageService.isUploadedLicense(presignedKey, ownerId) ? presignedKey : null;
+                // Streamed from the multipart temp file rather than loaded into memory
+                String key;
+                try (InputStream in = file.getInputStream()) {
+                    key = storageService.uploadLicense(in, file.getSize(), file.getOriginalFilename(), file.getContentType());
+                }
+                uploaded.set(key);
+                if (discarded.get()) deleteUploaded();
+                return key;
+            });
+        }
+
+        /** The license key, or null if the presigned key does not refer to an uploaded license. */
+        String await(Duration timeout) throws Exception {
+            return join(result, timeout);
+        }
+
+        void discard() {
+            if (!discarded.compareAndSet(false, true)) return;
+            result.cancel(true);
+            deleteUploaded();
+        }
+
+        private void deleteUploaded() {
+            String key = uploaded.getAndSet(null);
+            if (key != null) storageService.deleteLicense(key);
+        }
+    }
+
+    private static <T> T join(Future<T> step, Duration timeout) throws Exception {
+        try {
+            return step.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        }
+    }
+
+    @PreDestroy
+    void shutdown() {
+        steps.shutdown();
+    }
+
+    /**
+     * First phase of a two-phase booking: reserves a car of the type for [start, end) without a license.
+     * The hold expires after {@code BOOKING_HOLD_TTL} unless confirmed with {@code POST /holds/{id}/confirm}.
+     */
+    @PostMapping("/holds")
+    public ResponseEntity<?> hold(
+            @RequestParam("typeId") String typeId,
+            @RequestParam("start") String startIso,
+            @RequestParam("end") String endIso,
+            @AuthenticationPrincipal Jwt jwt
+    ) {
+        log.info("bookings.hold typeId={} start={} end={}", typeId, startIso, endIso);
+        OffsetDateTime start = OffsetDateTime.parse(startIso).withOffsetSameInstant(ZoneOffset.UTC);
+        OffsetDateTime end = OffsetDateTime.parse(endIso).withOffsetSameInstant(ZoneOffset.UTC);
+        if (!end.isAfter(start))
+            return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "end must be after start"));
+        CarType type = carTypeRepository.findById(typeId).orElseThrow(() -> new NoSuchElementException("No such car type"));
+        UserAccount user = currentUser(jwt);
+        if (!user.isEmailVerified()) return ResponseEntity.status(403).body(Map.of("error", "EMAIL_NOT_VERIFIED"));
+        if (bookingAdmission.certainlyFull(type.getId(), type.getTotalQuantity(), start, end)) {
+            log.info("bookings.hold.no_availability (precheck) typeId={} start={} end={}", typeId, start, end);
+            return ResponseEntity.status(409).body(Map.of("error", "NO_AVAILABILITY", "message", "No cars available for the requested range"));
+        }
+
+        int days = AvailabilityService.daysBetweenCeil(start, end);
+        OffsetDateTime nowUtc = OffsetDateTime.now(ZoneOffset.UTC);
+        UUID id = UUID.randomUUID();
+        boolean admitted;
+        try {
+            admitted = bookingAdmission.admit(new BookingAdmission.NewBooking(
+                    id, user.getId(), type.getId(), BookingStatus.HELD.name(), start, end, days,
+                    type.getPricePerDay(), type.getPricePerDay().multiply(BigDecimal.valueOf(days)),
+                    null, bookingHolds.expiryFrom(nowUtc), nowUtc, null, null), admissionTimeout);
+        } catch (BookingAdmission.AdmissionTimeoutException e) {
+            // An admitted hold nobody confirms simply expires
+            return ResponseEntity.status(503).body(Map.of("error", "ADMISSION_TIMEOUT", "message", "Booking admission is taking too long, retry later"));
+        }
+        if (!admitted) {
+            log.warn("bookings.hold.no_availability (ledger) typeId={} start={} end={}", typeId, start, end);
+            return ResponseEntity.status(409).body(Map.of("error", "NO_AVAILABILITY", "message", "No cars available for the requested range"));
+        }
+        Booking b = bookingRepository.findById(id).orElseThrow(() -> new IllegalStateException("Inserted hold not found"));
+        log.info("bookings.hold.saved bookingId={} expiresAt={}", b.getId(), b.getHoldExpiresAt());
+        events.publishEvent(new BookingChangedEvent(b.getId(), type.getId(), start, end, null, b.getStatus()));
+        return ResponseEntity.status(201).body(toResponse(b));
+    }
+
+    /**
+     * Second phase: attaches the license (uploaded file or presigned {@code licenseKey}, as for create) to an
+     * unexpired hold, which becomes a TO_CONFIRM booking. Capacity was taken by the hold, so this can't sell out.
+     */
+    @PostMapping(value = "/holds/{id}/confirm", consumes = {MediaType.MULTIPART_FORM_DATA_VALUE, MediaType.APPLICATION_FORM_URLENCODED_VALUE})
+    public ResponseEntity<?> confirmHold(
+            @PathVariable UUID id,
+            @RequestParam(value = "driverLicense", required = false) MultipartFile driverLicense,
+            @RequestParam(value = "licenseKey", required = false) String uploadedLicenseKey,
+            @AuthenticationPrincipal Jwt jwt
+    ) throws Exception {
+        log.info("bookings.hold.confirm id={}", id);
+        boolean hasFile = driverLicense != null && !driverLicense.isEmpty();
+        if (hasFile == (uploadedLicenseKey != null))
+            return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "exactly one of driverLicense or licenseKey is required"));
+        UserAccount user = currentUser(jwt);
+        Booking hold = bookingRepository.findById(id)
+                .filter(b -> b.getUser().getId().equals(user.getId()))
+                .orElseThrow(() -> new NoSuchElementException("Not found"));
+        if (hold.getStatus() != BookingStatus.HELD || !hold.getHoldExpiresAt().isAfter(OffsetDateTime.now(ZoneOffset.UTC)))
+            return ResponseEntity.status(409).body(Map.of("error", "HOLD_NOT_ACTIVE", "status", hold.getStatus().name()));
+        CarType type = carTypeRepository.findById(hold.getCarType().getId()).orElseThrow();
+
+        LicenseStep license = new LicenseStep(hasFile ? driverLicense : null, uploadedLicenseKey, user.getId());
+        boolean confirmed = false;
+        try {
+            String licenseKey = license.await(uploadTimeout);
+            if (licenseKey == null)
+                return ResponseEntity.badRequest().body(Map.of("error", "INVALID_LICENSE_KEY", "message", "licenseKey does not refer to an uploaded license"));
+            confirmed = bookingHolds.confirm(id, user.getId(), licenseKey,
+                    new EmailOutbox.Message(user.getEmail(), "Booking received (To Confirm)",
+                            "<p>We received your booking for type <b>" + type.getDisplayName() + "</b></p>" +
+                                    "<p>From: " + hold.getStartTs() + "<br/>To: " + hold.getEndTs() + "<br/>Days: " + hold.getDays() +
+                                    "<br/>Total: $" + hold.getTotal() + "</p>" +
+                                    "<p>Status: TO_CONFIRM</p>"));
+            if (!confirmed) {
+                // Expired (or cancelled) while the license was uploading
+                return ResponseEntity.status(409).body(Map.of("error", "HOLD_NOT_ACTIVE"));
+            }
+        } finally {
+            if (!confirmed) license.discard();
+        }
+        Booking b = bookingRepository.findById(id).orElseThrow();
+        events.publishEvent(new BookingChangedEvent(b.getId(), type.getId(), b.getStartTs(), b.getEndTs(), BookingStatus.HELD, b.getStatus()));
+        log.info("bookings.hold.confirm.success id={}", id);
+        return ResponseEntity.ok(toResponse(b));
+    }
+
+    // Resolve user by JWT subject (email in "sub" or "email")
+    private UserAccount currentUser(Jwt jwt) {
+        String email = jwt.getClaimAsString("email") != null ? jwt.getClaimAsString("email") : jwt.getSubject();
+        return userRepo.findByEmail(email).orElseThrow(() -> new NoSuchElementException("User not found"));
+    }
+
+    /**
+     * Presigned PUT for uploading a license image straight to storage. The client PUTs the image to
+     * {@code uploadUrl} with the returned headers, then creates the booking with {@code licenseKey}.
+     */
+    @PostMapping("/license-upload")
+    public ResponseEntity<?> licenseUpload(
+            @RequestParam(value = "filename", required = false) String filename,
+            @RequestParam(value = "contentType", defaultValue = "image/jpeg") String contentType,
+            @AuthenticationPrincipal Jwt jwt
+    ) {
+        if (!contentType.startsWith("image/"))
+            return ResponseEntity.badRequest().body(Map.of("error", "VALIDATION_ERROR", "message", "contentType must be an image type"));
+        UserAccount user = currentUser(jwt);
+        StorageService.PresignedUpload upload = storageService.presignLicenseUpload(user.getId(), filename, contentType);
+        log.info("bookings.license_upload.presigned userId={} key={} expiresAt={}", user.getId(), upload.licenseKey(), upload.expiresAt());
+        return ResponseEntity.status(201).body(Map.of(
+                "licenseKey", upload.licenseKey(),
+                "uploadUrl", upload.uploadUrl(),
+                "method", "PUT",
+                "headers", upload.headers(),
+                "expiresAt", upload.expiresAt().toString()
+        ));
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<?> get(@PathVariable UUID id) {
         log.debug("bookings.get id={}", id);
@@ -126,28 +397,37 @@ public class BookingController {
     @Transactional
     public ResponseEntity<?> cancel(@PathVariable UUID id, @AuthenticationPrincipal Jwt jwt) {
         log.info("bookings.cancel id={}", id);
-        Booking b = bookingRepository.findById(id).orElseThrow();
-        if (b.getStatus() == BookingStatus.CANCELLED || b.getStatus() == BookingStatus.REJECTED || b.getStatus() == BookingStatus.FINISHED)
+        // Locked, so the status checked here is still the one being left when the ledger is released
+        Booking b = bookingRepository.findByIdForUpdate(id).orElseThrow();
+        if (b.getStatus() == BookingStatus.CANCELLED || b.getStatus() == BookingStatus.REJECTED || b.getStatus() == BookingStatus.FINISHED
+                || b.getStatus() == BookingStatus.EXPIRED)
             return ResponseEntity.badRequest().body(Map.of("error","INVALID_STATE"));
+        BookingStatus previous = b.getStatus();
+        if (previous.isActive()) capacityLedger.release(b.getCarType().getId(), b.getStartTs(), b.getEndTs());
         b.setStatus(BookingStatus.CANCELLED);
+        b.setHoldExpiresAt(null);
         b.setUpdatedAt(OffsetDateTime.now(ZoneOffset.UTC));
         bookingRepository.save(b);
+        utilizationRollups.apply(b.getCarType().getId(), b.getStartTs(), b.getEndTs(), b.getTotal(), previous, b.getStatus());
+        events.publishEvent(new BookingChangedEvent(b.getId(), b.getCarType().getId(), b.getStartTs(), b.getEndTs(), previous, b.getStatus()));
         log.info("bookings.cancel.success id={}", id);
         return ResponseEntity.ok(Map.of("status","CANCELLED"));
     }
 
     private Map<String,Object> toResponse(Booking b) {
-        return Map.of(
-                "bookingId", b.getId(),
-                "status", b.getStatus().name(),
-                "typeId", b.getCarType().getId(),
-                "start", b.getStartTs().toString(),
-                "end", b.getEndTs().toString(),
-                "days", b.getDays(),
-                "pricePerDay", b.getPricePerDay(),
-                "estimatedTotal", b.getTotal(),
-                "licenseImageKey", b.getLicenseKey(),
-                "createdAt", b.getCreatedAt().toString()
-        );
+        // Holds have no license yet, only an expiry
+        Map<String,Object> body = new LinkedHashMap<>();
+        body.put("bookingId", b.getId());
+        body.put("status", b.getStatus().name());
+        body.put("typeId", b.getCarType().getId());
+        body.put("start", b.getStartTs().toString());
+        body.put("end", b.getEndTs().toString());
+        body.put("days", b.getDays());
+        body.put("pricePerDay", b.getPricePerDay());
+        body.put("estimatedTotal", b.getTotal());
+        body.put("licenseImageKey", b.getLicenseKey());
+        if (b.getHoldExpiresAt() != null) body.put("holdExpiresAt", b.getHoldExpiresAt().toString());
+        body.put("createdAt", b.getCreatedAt().toString());
+        return body;
     }
 }
@@ -6,15 +6,25 @@ import com.serge.carrental.domain.CarType;
 import com.serge.carrental.repo.BookingRepository;
 import com.serge.carrental.repo.CarTypeRepository;
 import com.serge.carrental.service.AvailabilityService;
+import com.serge.carrental.service.AvailabilityStreamService;
+import com.serge.carrental.service.AvailabilityWarmup;
+import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.NotEmpty;
+import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Size;
 import lombok.Data;
 import lombok.RequiredArgsConstructor;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.time.OffsetDateTime;
+import java.time.YearMonth;
 import java.time.ZoneOffset;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -26,6 +36,8 @@ public class CarsController {
     private static final Logger log = LoggerFactory.getLogger(CarsController.class);
     private final CarTypeRepository carTypeRepository;
     private final AvailabilityService availabilityService;
+    private final AvailabilityStreamService availabilityStreamService;
+    private final AvailabilityWarmup availabilityWarmup;
 
     @GetMapping("/types")
     public List<CarTypeDto> types() {
@@ -42,6 +54,7 @@ public class CarsController {
         OffsetDateTime f = from.withOffsetSameInstant(ZoneOffset.UTC);
         OffsetDateTime t = to.withOffsetSameInstant(ZoneOffset.UTC);
         log.info("cars.search from={} to={}", f, t);
+        availabilityWarmup.record(f, t);
         Map<String,Integer> avail = availabilityService.availabilityAll(f, t);
         int days = AvailabilityService.daysBetweenCeil(f, t);
         List<AvailabilityDto> out = new ArrayList<>();
@@ -52,6 +65,48 @@ public class CarsController {
         return out;
     }
 
+    /**
+     * Availability for many (from, to, typeIds) windows in one request, e.g. for flexible-date UIs.
+     * Each window omitting typeIds covers all types. Results come back in request order.
+     */
+    @PostMapping("/search/batch")
+    public ResponseEntity<?> searchBatch(@RequestBody @Valid BatchSearchReq req) {
+        log.info("cars.search.batch windows={}", req.getWindows().size());
+        List<CarType> all = carTypeRepository.findAll();
+        Map<String, CarType> byId = all.stream().collect(Collectors.toMap(CarType::getId, ct -> ct));
+        List<AvailabilityService.Window> windows = new ArrayList<>();
+        for (SearchWindowReq w : req.getWindows()) {
+            OffsetDateTime f = w.getFrom().withOffsetSameInstant(ZoneOffset.UTC);
+            OffsetDateTime t = w.getTo().withOffsetSameInstant(ZoneOffset.UTC);
+            if (!t.isAfter(f)) {
+                return ResponseEntity.badRequest().body(Map.of("error", "INVALID_WINDOW", "from", f.toString(), "to", t.toString()));
+            }
+            List<CarType> types = all;
+            if (w.getTypeIds() != null && !w.getTypeIds().isEmpty()) {
+                types = new ArrayList<>();
+                for (String typeId : new LinkedHashSet<>(w.getTypeIds())) {
+                    CarType ct = byId.get(typeId);
+                    if (ct == null) throw new NoSuchElementException("No such car type");
+                    types.add(ct);
+                }
+            }
+            windows.add(new AvailabilityService.Window(f, t, types));
+            availabilityWarmup.record(f, t);
+        }
+        List<Map<String, Integer>> avail = availabilityService.availabilityBatch(windows);
+        List<BatchResultDto> out = new ArrayList<>();
+        for (int i = 0; i < windows.size(); i++) {
+            AvailabilityService.Window w = windows.get(i);
+            int days = AvailabilityService.daysBetweenCeil(w.from(), w.to());
+            List<AvailabilityDto> results = new ArrayList<>();
+            for (CarType ct : w.types()) {
+                results.add(AvailabilityDto.of(ct, avail.get(i).getOrDefault(ct.getId(), 0), days));
+            }
+            out.add(BatchResultDto.of(w.from(), w.to(), results));
+        }
+        return ResponseEntity.ok(out);
+    }
+
     @GetMapping("/types/{typeId}")
     public ResponseEntity<?> typeDetail(
             @PathVariable String typeId,
@@ -82,6 +137,49 @@ public class CarsController {
         return ResponseEntity.ok(body);
     }
 
+    @GetMapping(value = "/availability/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public ResponseEntity<?> availabilityStream(
+            @RequestParam(required = false) List<String> typeIds,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime from,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) OffsetDateTime to
+    ) {
+        OffsetDateTime f = from.withOffsetSameInstant(ZoneOffset.UTC);
+        OffsetDateTime t = to.withOffsetSameInstant(ZoneOffset.UTC);
+        log.info("cars.availability.stream typeIds={} from={} to={}", typeIds, f, t);
+        if (!t.isAfter(f)) {
+            // Content type set explicitly: the endpoint otherwise only produces text/event-stream
+            return ResponseEntity.badRequest().contentType(MediaType.APPLICATION_JSON)
+                    .body(Map.of("error", "INVALID_WINDOW", "from", f.toString(), "to", t.toString()));
+        }
+        if (!availabilityStreamService.acceptsSubscribers()) {
+            log.warn("cars.availability.stream.rejected reason=too_many_subscribers");
+            return ResponseEntity.status(503).build();
+        }
+        return ResponseEntity.ok(availabilityStreamService.subscribe(typeIds == null ? List.of() : typeIds, f, t));
+    }
+
+    @GetMapping("/types/{typeId}/calendar")
+    public ResponseEntity<?> calendar(
+            @PathVariable String typeId,
+            @RequestParam(required = false) @DateTimeFormat(pattern = "yyyy-MM") YearMonth month
+    ) {
+        YearMonth m = month != null ? month : YearMonth.now(ZoneOffset.UTC);
+        log.info("cars.calendar typeId={} month={}", typeId, m);
+        CarType ct = carTypeRepository.findById(typeId).orElseThrow(() -> new NoSuchElementException("No such car type"));
+        OffsetDateTime from = m.atDay(1).atStartOfDay().atOffset(ZoneOffset.UTC);
+        int[] available = availabilityService.calendar(ct, from, m.lengthOfMonth());
+        List<CalendarDayDto> days = new ArrayList<>();
+        for (int i = 0; i < available.length; i++) {
+            days.add(CalendarDayDto.of(m.atDay(i + 1), available[i]));
+        }
+        Map<String,Object> body = new LinkedHashMap<>();
+        body.put("typeId", ct.getId());
+        body.put("month", m.toString());
+        body.put("totalQuantity", ct.getTotalQuantity());
+        body.put("days", days);
+        return ResponseEntity.ok(body);
+    }
+
     // DTOs
     @Data
     public static class CarTypeDto {
@@ -105,6 +203,49 @@ public class CarsController {
         }
     }
 
+    @Data
+    public static class BatchSearchReq {
+        @NotEmpty @Size(max = 100)
+        private List<@Valid SearchWindowReq> windows;
+    }
+
+    @Data
+    public static class SearchWindowReq {
+        @NotNull
+        private OffsetDateTime from;
+        @NotNull
+        private OffsetDateTime to;
+        private List<String> typeIds;
+    }
+
+    @Data
+    public static class BatchResultDto {
+        private OffsetDateTime from;
+        private OffsetDateTime to;
+        private List<AvailabilityDto> results;
+
+        public static BatchResultDto of(OffsetDateTime from, OffsetDateTime to, List<AvailabilityDto> results) {
+            BatchResultDto d = new BatchResultDto();
+            d.from = from;
+            d.to = to;
+            d.results = results;
+            return d;
+        }
+    }
+
+    @Data
+    public static class CalendarDayDto {
+        private LocalDate date;
+        private Integer available;
+
+        public static CalendarDayDto of(LocalDate date, int available) {
+            CalendarDayDto d = new CalendarDayDto();
+            d.date = date;
+            d.available = available;
+            return d;
+        }
+    }
+
     @Data
     public static class AvailabilityDto {
         private String typeId;
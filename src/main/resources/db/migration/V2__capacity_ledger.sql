@@ -0,0 +1,15 @@
+-- capacity ledger: cars of a type in use per UTC hour, maintained on admission and release
+CREATE TABLE capacity_ledger (
+    type_id VARCHAR(20) NOT NULL REFERENCES car_types(id),
+    slot_start TIMESTAMP WITHOUT TIME ZONE NOT NULL,
+    used INT NOT NULL DEFAULT 0 CHECK (used >= 0),
+    PRIMARY KEY (type_id, slot_start)
+);
+
+-- backfill from active bookings
+INSERT INTO capacity_ledger (type_id, slot_start, used)
+SELECT b.type_id, s.slot_start, COUNT(*)
+FROM bookings b
+CROSS JOIN LATERAL generate_series(date_trunc('hour', b.start_ts), b.end_ts - interval '1 microsecond', interval '1 hour') AS s(slot_start)
+WHERE b.status IN ('TO_CONFIRM','BOOKED','OCCUPIED')
+GROUP BY b.type_id, s.slot_start;
@@ -0,0 +1,4 @@
+-- holds: HELD bookings reserve capacity until hold_expires_at, then the sweeper marks them EXPIRED
+ALTER TABLE bookings ADD COLUMN hold_expires_at TIMESTAMP WITHOUT TIME ZONE;
+
+CREATE INDEX bookings_hold_expiry_idx ON bookings (hold_expires_at) WHERE status = 'HELD';
@@ -0,0 +1,3 @@
+-- admin listing: newest first, paged by keyset on (created_at, id)
+CREATE INDEX bookings_admin_list_idx ON bookings (created_at DESC, id DESC);
+CREATE INDEX bookings_admin_list_status_idx ON bookings (status, created_at DESC, id DESC);
@@ -0,0 +1,23 @@
+-- daily rollups: per type, UTC day and status, the bookings overlapping the day, their hours within it and
+-- their revenue pro rata to those hours. Maintained with every booking write; rebuilt from bookings on demand.
+CREATE TABLE booking_daily_rollup (
+    type_id VARCHAR(20) NOT NULL REFERENCES car_types(id),
+    day DATE NOT NULL,
+    status VARCHAR(20) NOT NULL,
+    bookings INT NOT NULL,
+    booked_hours NUMERIC(14,4) NOT NULL,
+    revenue NUMERIC(16,4) NOT NULL,
+    PRIMARY KEY (type_id, day, status)
+);
+
+CREATE INDEX booking_daily_rollup_day_idx ON booking_daily_rollup (day);
+
+INSERT INTO booking_daily_rollup (type_id, day, status, bookings, booked_hours, revenue)
+SELECT b.type_id, CAST(d.day AS date), b.status, COUNT(*),
+       SUM(EXTRACT(EPOCH FROM LEAST(b.end_ts, d.day + interval '1 day') - GREATEST(b.start_ts, d.day)) / 3600),
+       SUM(b.total * EXTRACT(EPOCH FROM LEAST(b.end_ts, d.day + interval '1 day') - GREATEST(b.start_ts, d.day))
+                   / EXTRACT(EPOCH FROM b.end_ts - b.start_ts))
+FROM bookings b
+CROSS JOIN LATERAL generate_series(date_trunc('day', b.start_ts), b.end_ts - interval '1 microsecond', interval '1 day') AS d(day)
+WHERE b.end_ts > b.start_ts
+GROUP BY b.type_id, d.day, b.status;
@@ -0,0 +1,2 @@
+-- incremental refresh of the in-memory analytics snapshot reads bookings changed since its last pass
+CREATE INDEX bookings_updated_at_idx ON bookings (updated_at);
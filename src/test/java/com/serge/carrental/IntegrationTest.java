@@ -2,6 +2,9 @@ package com.serge.carrental;
 
 import com.serge.carrental.report.HtmlReportExtension;
 import com.serge.carrental.report.TestDescription;
+import com.serge.carrental.service.BookingHolds;
+import com.serge.carrental.service.CapacityLedger;
+import com.serge.carrental.service.EmailOutbox;
 import com.serge.carrental.service.StorageService;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -38,6 +41,9 @@ import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
 import java.net.Socket;
@@ -49,10 +55,12 @@ import java.time.Duration;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Stream;
 import java.util.List;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -118,6 +126,16 @@ public class IntegrationTest {
     VerificationTokenRepository tokens;
     @Autowired
     ObjectMapper om;
+    @Autowired
+    JdbcTemplate jdbc;
+    @Autowired
+    TransactionTemplate tx;
+    @Autowired
+    CapacityLedger capacityLedger;
+    @Autowired
+    EmailOutbox emailOutbox;
+    @Autowired
+    BookingHolds bookingHolds;
 
     @MockBean
     StorageService storageService;
@@ -220,11 +238,12 @@ public class IntegrationTest {
     }
 
     @BeforeEach
-    void stubStorageService() {
+    void stubStorageService() throws Exception {
         // Ensure no network calls to S3/MinIO during tests
         Mockito.reset(storageService);
         Mockito.when(storageService.uploadLicense(
-                any(byte[].class),
+                any(InputStream.class),
+                anyLong(),
                 anyString(),
                 anyString())
         ).thenAnswer(inv -> "s3://test-bucket/uploads/" + UUID.randomUUID() + "-mock.jpg");
@@ -233,6 +252,109 @@ public class IntegrationTest {
 
 
 
+    // ----- Booking helpers -------------------------------------------------------------------
+
+    private static final String ADMIN_JWT = JwtTestUtil.minimalJwt("admin@example.com", "admin:write");
+
+    /** Saves a verified user and returns a bookings:write JWT for it. */
+    private String verifiedUserJwt(String prefix) {
+        return JwtTestUtil.minimalJwt(verifiedUser(prefix).getEmail(), "bookings:write");
+    }
+
+    private UserAccount verifiedUser(String prefix) {
+        UserAccount u = new UserAccount();
+        u.setEmail((prefix + "+" + UUID.randomUUID() + "@example.com").toLowerCase());
+        u.setPasswordHash("{noop}");
+        u.setEmailVerified(true);
+        u.setCreatedAt(OffsetDateTime.now(ZoneOffset.UTC));
+        return users.save(u);
+    }
+
+    /**
+     * Inserts a booking row directly, bypassing admission (so it takes no ledger capacity): only for statuses that
+     * are not active, or for reads that don't look at the ledger.
+     */
+    private UUID insertBooking(UUID userId, String typeId, String status, OffsetDateTime start, OffsetDateTime end,
+                               String registration, OffsetDateTime createdAt) {
+        UUID id = UUID.randomUUID();
+        int days = (int) Math.max(1, Math.ceil(Duration.between(start, end).toMinutes() / 1440.0));
+        jdbc.update("""
+                INSERT INTO bookings (id, user_id, type_id, status, time_range, start_ts, end_ts, days, price_per_day, total,
+                                      license_key, car_registration_number, created_at, updated_at)
+                VALUES (?, ?, ?, ?, tsrange(CAST(? AS timestamp), CAST(? AS timestamp), '[)'), CAST(? AS timestamp), CAST(? AS timestamp),
+                        ?, 50.00, ?, ?, ?, CAST(? AS timestamp), CAST(? AS timestamp))
+                """, id, userId, typeId, status, start, end, start, end, days, new java.math.BigDecimal(50 * days),
+                "s3://test-bucket/uploads/" + id + "-mock.jpg", registration, createdAt, createdAt);
+        return id;
+    }
+
+    private ResponseEntity<String> adminGet(String path, Object... uriVars) {
+        HttpHeaders h = new HttpHeaders();
+        h.setBearerAuth(ADMIN_JWT);
+        return rest.exchange(baseUrl() + path, HttpMethod.GET, new HttpEntity<>(h), String.class, uriVars);
+    }
+
+    private ResponseEntity<String> createBooking(String jwt, String typeId, OffsetDateTime start, OffsetDateTime end, String idempotencyKey) {
+        HttpHeaders h = new HttpHeaders();
+        h.setBearerAuth(jwt);
+        h.setContentType(MediaType.MULTIPART_FORM_DATA);
+        if (idempotencyKey != null) h.set("Idempotency-Key", idempotencyKey);
+        LinkedMultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add("typeId", typeId);
+        body.add("start", start.toString());
+        body.add("end", end.toString());
+        body.add("driverLicense", new org.springframework.core.io.ByteArrayResource("img".getBytes(StandardCharsets.UTF_8)) {
+            @Override public String getFilename() { return "license.jpg"; }
+        });
+        return rest.exchange(baseUrl() + "/api/bookings", HttpMethod.POST, new HttpEntity<>(body, h), String.class);
+    }
+
+    private ResponseEntity<String> hold(String jwt, String typeId, OffsetDateTime start, OffsetDateTime end) {
+        return post(jwt, "/api/bookings/holds?typeId={t}&start={s}&end={e}", null, typeId, start.toString(), end.toString());
+    }
+
+    private ResponseEntity<String> confirmHold(String jwt, String holdId) {
+        HttpHeaders h = new HttpHeaders();
+        h.setBearerAuth(jwt);
+        h.setContentType(MediaType.MULTIPART_FORM_DATA);
+        LinkedMultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
+        body.add("driverLicense", new org.springframework.core.io.ByteArrayResource("img".getBytes(StandardCharsets.UTF_8)) {
+            @Override public String getFilename() { return "license.jpg"; }
+        });
+        return rest.exchange(baseUrl() + "/api/bookings/holds/{id}/confirm", HttpMethod.POST, new HttpEntity<>(body, h), String.class, holdId);
+    }
+
+    private String bookingStatus(String bookingId) {
+        return jdbc.queryForObject("SELECT status FROM bookings WHERE id = CAST(? AS uuid)", String.class, bookingId);
+    }
+
+    private void expireHold(String bookingId) {
+        jdbc.update("UPDATE bookings SET hold_expires_at = CAST(? AS timestamp) WHERE id = CAST(? AS uuid)",
+                OffsetDateTime.now(ZoneOffset.UTC).minusMinutes(1), bookingId);
+    }
+
+    private ResponseEntity<String> post(String jwt, String path, Object body, Object... uriVars) {
+        HttpHeaders h = new HttpHeaders();
+        h.setBearerAuth(jwt);
+        if (body != null) h.setContentType(MediaType.APPLICATION_JSON);
+        return rest.exchange(baseUrl() + path, HttpMethod.POST, new HttpEntity<>(body, h), String.class, uriVars);
+    }
+
+    private String bookingId(ResponseEntity<String> created) throws Exception {
+        Map<String, Object> json = om.readValue(created.getBody(), new TypeReference<>() {});
+        return (String) json.get("bookingId");
+    }
+
+    private boolean reserve(String typeId, OffsetDateTime from, OffsetDateTime to) {
+        return Boolean.TRUE.equals(tx.execute(s -> capacityLedger.reserve(typeId, from, to)));
+    }
+
+    /** Units of the type's capacity ledger slot starting at {@code slot}; 0 if the slot was never created. */
+    private int ledgerUsed(String typeId, OffsetDateTime slot) {
+        return jdbc.query("SELECT used FROM capacity_ledger WHERE type_id = ? AND slot_start = CAST(? AS timestamp)",
+                rs -> rs.next() ? rs.getInt(1) : 0, typeId, slot);
+    }
+
     // =========================
     // Public endpoints scenarios
     // =========================
@@ -267,6 +389,682 @@ public class IntegrationTest {
         assertThat(s).containsKeys("available", "days", "estimatedTotal");
     }
 
+    @Test
+    @DisplayName("Public endpoints: /api/cars/types/{id}/calendar")
+    @TestDescription("Validates the per-day availability calendar returns one entry per day of the month, bounded by total quantity.")
+    void public_endpoint_availability_calendar() throws Exception {
+        logStep("Public: /api/cars/types/{id}/calendar for February 2030");
+        ResponseEntity<String> cal = rest.getForEntity(baseUrl() + "/api/cars/types/{id}/calendar?month={m}",
+                String.class, "VAN", "2030-02");
+        assertThat(cal.getStatusCode().is2xxSuccessful()).isTrue();
+        Map<String, Object> json = om.readValue(cal.getBody(), new TypeReference<>() {});
+        assertThat(json.get("month")).isEqualTo("2030-02");
+        List<Map<String, Object>> days = om.convertValue(json.get("days"), new TypeReference<>() {});
+        assertThat(days).hasSize(28);
+        assertThat(days.get(0).get("date")).isEqualTo("2030-02-01");
+        assertThat(days).allMatch(d -> (Integer) d.get("available") <= (Integer) json.get("totalQuantity"));
+    }
+
+    @Test
+    @DisplayName("Public endpoints: POST /api/cars/search/batch")
+    @TestDescription("Validates a batch search answers every window in request order, limited to the requested types when given.")
+    void public_endpoint_search_batch() throws Exception {
+        OffsetDateTime base = OffsetDateTime.now(ZoneOffset.UTC).plusDays(20).withHour(10).withMinute(0).withSecond(0).withNano(0);
+        Map<String, Object> body = Map.of("windows", List.of(
+                Map.of("from", base.toString(), "to", base.plusDays(2).toString()),
+                Map.of("from", base.plusMinutes(5).toString(), "to", base.plusDays(3).toString(), "typeIds", List.of("SEDAN"))));
+        HttpHeaders h = new HttpHeaders();
+        h.setContentType(MediaType.APPLICATION_JSON);
+        logStep("Public: /api/cars/search/batch with two windows");
+        ResponseEntity<String> res = rest.postForEntity(baseUrl() + "/api/cars/search/batch", new HttpEntity<>(body, h), String.class);
+        assertThat(res.getStatusCode().is2xxSuccessful()).isTrue();
+        List<Map<String, Object>> windows = om.readValue(res.getBody(), new TypeReference<>() {});
+        assertThat(windows).hasSize(2);
+        List<Map<String, Object>> all = om.convertValue(windows.get(0).get("results"), new TypeReference<>() {});
+        assertThat(all).extracting(r -> r.get("typeId")).contains("SEDAN", "VAN");
+        assertThat(all).allMatch(r -> (Integer) r.get("days") == 2);
+        List<Map<String, Object>> sedan = om.convertValue(windows.get(1).get("results"), new TypeReference<>() {});
+        assertThat(sedan).hasSize(1);
+        assertThat(sedan.get(0).get("typeId")).isEqualTo("SEDAN");
+        assertThat(sedan.get(0).get("days")).isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("Public endpoints: /api/cars/availability/stream rejects an empty window")
+    @TestDescription("Validates the availability stream answers 400 INVALID_WINDOW, like /search, instead of subscribing when to <= from.")
+    void public_endpoint_stream_rejects_invalid_window() {
+        String at = OffsetDateTime.now(ZoneOffset.UTC).plusDays(3).withHour(10).withMinute(0).withSecond(0).withNano(0).toString();
+        HttpHeaders h = new HttpHeaders();
+        h.setAccept(List.of(MediaType.TEXT_EVENT_STREAM, MediaType.APPLICATION_JSON));
+        logStep("Public: /api/cars/availability/stream with from == to");
+        ResponseEntity<String> res = rest.exchange(baseUrl() + "/api/cars/availability/stream?from={f}&to={t}",
+                HttpMethod.GET, new HttpEntity<>(h), String.class, at, at);
+        assertThat(res.getStatusCode().value()).isEqualTo(400);
+        assertThat(res.getBody()).contains("INVALID_WINDOW");
+    }
+
+
+    // =========================
+    // Capacity ledger scenarios
+    // =========================
+    @Test
+    @DisplayName("Capacity ledger: a reservation over two hourly slots is all-or-nothing")
+    @TestDescription("Fills one slot of VAN, then checks a booking spanning it and the previous slot takes neither, and takes both once the full slot has room.")
+    void ledger_reservation_across_slots_is_all_or_nothing() {
+        OffsetDateTime h1 = OffsetDateTime.of(2031, 1, 6, 10, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime h2 = h1.plusHours(1);
+        OffsetDateTime spanFrom = h1.plusMinutes(30), spanTo = h2.plusMinutes(30);
+
+        logStep("Ledger: fill the " + h2 + " slot of VAN (4 cars)");
+        for (int i = 0; i < 4; i++) {
+            assertThat(reserve("VAN", h2, h2.plusHours(1))).isTrue();
+        }
+        logStep("Ledger: a booking over both slots is refused and takes nothing");
+        assertThat(reserve("VAN", spanFrom, spanTo)).isFalse();
+        assertThat(ledgerUsed("VAN", h1)).isZero();
+        assertThat(ledgerUsed("VAN", h2)).isEqualTo(4);
+
+        logStep("Ledger: after one release the same booking takes one unit of each slot");
+        tx.executeWithoutResult(s -> capacityLedger.release("VAN", h2, h2.plusHours(1)));
+        assertThat(reserve("VAN", spanFrom, spanTo)).isTrue();
+        assertThat(ledgerUsed("VAN", h1)).isEqualTo(1);
+        assertThat(ledgerUsed("VAN", h2)).isEqualTo(4);
+
+        tx.executeWithoutResult(s -> {
+            capacityLedger.release("VAN", spanFrom, spanTo);
+            for (int i = 0; i < 3; i++) capacityLedger.release("VAN", h2, h2.plusHours(1));
+        });
+        assertThat(ledgerUsed("VAN", h1)).isZero();
+        assertThat(ledgerUsed("VAN", h2)).isZero();
+    }
+
+    @Test
+    @DisplayName("Capacity ledger: cancel and reject give the booking's slots back")
+    @TestDescription("Creates off-hour VAN bookings, checks they take both hourly slots they touch, and that cancel and admin reject restore them.")
+    void ledger_release_on_cancel_and_reject() throws Exception {
+        String jwt = verifiedUserJwt("ledger");
+        OffsetDateTime start = OffsetDateTime.of(2031, 2, 3, 10, 30, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusHours(2);
+        OffsetDateTime[] slots = {start.withMinute(0), start.withMinute(0).plusHours(1), start.withMinute(0).plusHours(2)};
+
+        logStep("Ledger: 10:30-12:30 takes the 10:00, 11:00 and 12:00 slots");
+        String cancelled = bookingId(createBooking(jwt, "VAN", start, end, null));
+        for (OffsetDateTime slot : slots) assertThat(ledgerUsed("VAN", slot)).as("slot %s", slot).isEqualTo(1);
+        assertThat(post(jwt, "/api/bookings/{id}/cancel", null, cancelled).getStatusCode().value()).isEqualTo(200);
+        for (OffsetDateTime slot : slots) assertThat(ledgerUsed("VAN", slot)).as("slot %s", slot).isZero();
+
+        logStep("Ledger: admin reject gives the slots back too");
+        String rejected = bookingId(createBooking(jwt, "VAN", start, end, null));
+        assertThat(ledgerUsed("VAN", slots[1])).isEqualTo(1);
+        assertThat(post(ADMIN_JWT, "/api/admin/bookings/{id}/reject", null, rejected).getStatusCode().value()).isEqualTo(200);
+        for (OffsetDateTime slot : slots) assertThat(ledgerUsed("VAN", slot)).as("slot %s", slot).isZero();
+
+        logStep("Ledger: a second cancel is refused and releases nothing");
+        String kept = bookingId(createBooking(jwt, "VAN", start, end, null));
+        assertThat(post(jwt, "/api/bookings/{id}/cancel", null, cancelled).getStatusCode().value()).isEqualTo(400);
+        assertThat(ledgerUsed("VAN", slots[1])).isEqualTo(1);
+        post(jwt, "/api/bookings/{id}/cancel", null, kept);
+    }
+
+    @Test
+    @DisplayName("Capacity ledger: the V2 backfill reproduces the maintained ledger")
+    @TestDescription("With active bookings in place, recomputes the ledger with the migration's backfill query and checks it matches the used slots row for row.")
+    void ledger_matches_backfill() throws Exception {
+        String jwt = verifiedUserJwt("backfill");
+        OffsetDateTime start = OffsetDateTime.of(2031, 3, 10, 9, 15, 0, 0, ZoneOffset.UTC);
+        String a = bookingId(createBooking(jwt, "SEDAN", start, start.plusHours(5), null));
+        String b = bookingId(createBooking(jwt, "SEDAN", start.plusHours(3), start.plusDays(1), null));
+
+        // The migration's backfill, over today's active statuses (HELD came later, in V4)
+        String backfill = """
+                SELECT b.type_id, s.slot_start, CAST(COUNT(*) AS int) AS used
+                FROM bookings b
+                CROSS JOIN LATERAL generate_series(date_trunc('hour', b.start_ts), b.end_ts - interval '1 microsecond', interval '1 hour') AS s(slot_start)
+                WHERE b.status IN ('HELD','TO_CONFIRM','BOOKED','OCCUPIED')
+                GROUP BY b.type_id, s.slot_start
+                """;
+        String ledger = "SELECT type_id, slot_start, used FROM capacity_ledger WHERE used > 0";
+        logStep("Ledger: backfill query and ledger hold the same rows");
+        Long diff = jdbc.queryForObject("SELECT COUNT(*) FROM ((" + backfill + " EXCEPT " + ledger + ") UNION ALL (" + ledger + " EXCEPT " + backfill + ")) d", Long.class);
+        assertThat(diff).isZero();
+        assertThat(ledgerUsed("SEDAN", start.withMinute(0).plusHours(3))).isEqualTo(2);
+
+        post(jwt, "/api/bookings/{id}/cancel", null, a);
+        post(jwt, "/api/bookings/{id}/cancel", null, b);
+    }
+
+    // ==============================================================
+    // Admission scenario: concurrent same-type creates never oversell
+    // ==============================================================
+    @Test
+    @DisplayName("Admission: concurrent creates for one type admit exactly its total quantity")
+    @TestDescription("Fires many simultaneous VAN creates for the same window through the per-type admission lanes; exactly total_quantity get 201, the rest 409, and bookings and ledger agree.")
+    void admission_concurrent_same_type_never_oversells() throws Exception {
+        String typeId = "VAN";
+        int total = jdbc.queryForObject("SELECT total_quantity FROM car_types WHERE id = ?", Integer.class, typeId);
+        OffsetDateTime start = OffsetDateTime.of(2031, 4, 7, 8, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusDays(3);
+        int attempts = total * 6;
+        List<String> jwts = new java.util.ArrayList<>();
+        for (int i = 0; i < attempts; i++) jwts.add(verifiedUserJwt("lane"));
+
+        logStep("Admission: " + attempts + " concurrent creates for " + total + " " + typeId + "s");
+        ExecutorService pool = Executors.newFixedThreadPool(attempts);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<ResponseEntity<String>>> results = new java.util.ArrayList<>();
+        for (String jwt : jwts) {
+            results.add(pool.submit(() -> {
+                go.await();
+                return createBooking(jwt, typeId, start, end, null);
+            }));
+        }
+        go.countDown();
+        List<String> created = new java.util.ArrayList<>();
+        int refused = 0;
+        for (Future<ResponseEntity<String>> f : results) {
+            ResponseEntity<String> res = f.get(120, TimeUnit.SECONDS);
+            if (res.getStatusCode().value() == 201) created.add(bookingId(res));
+            else if (res.getStatusCode().value() == 409) refused++;
+        }
+        pool.shutdown();
+
+        assertThat(created).hasSize(total);
+        assertThat(refused).isEqualTo(attempts - total);
+        logStep("Admission: bookings and ledger agree on " + total + " cars in use");
+        Integer active = jdbc.queryForObject("""
+                SELECT COUNT(*) FROM bookings
+                WHERE type_id = ? AND status IN ('HELD','TO_CONFIRM','BOOKED','OCCUPIED')
+                  AND time_range && tsrange(CAST(? AS timestamp), CAST(? AS timestamp), '[)')
+                """, Integer.class, typeId, start, end);
+        assertThat(active).isEqualTo(total);
+        for (OffsetDateTime slot = start; slot.isBefore(end); slot = slot.plusHours(1)) {
+            assertThat(ledgerUsed(typeId, slot)).as("slot %s", slot).isEqualTo(total);
+        }
+
+        for (String id : created) post(ADMIN_JWT, "/api/admin/bookings/{id}/reject", null, id);
+        assertThat(ledgerUsed(typeId, start)).isZero();
+    }
+
+    // =========================
+    // Idempotent create scenarios
+    // =========================
+    @Test
+    @DisplayName("Idempotency: the same key and payload replays the booking without a second upload")
+    @TestDescription("Creates a booking with an Idempotency-Key, repeats it, and checks the replay returns the same booking with Idempotent-Replayed: true and uploads nothing.")
+    void idempotent_create_replays_same_booking() throws Exception {
+        String jwt = verifiedUserJwt("idem");
+        String key = "idem-" + UUID.randomUUID();
+        OffsetDateTime start = OffsetDateTime.of(2031, 5, 5, 9, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusDays(2);
+
+        logStep("Idempotency: first create with key " + key);
+        ResponseEntity<String> first = createBooking(jwt, "SEDAN", start, end, key);
+        assertThat(first.getStatusCode().value()).isEqualTo(201);
+        assertThat(first.getHeaders().getFirst("Idempotent-Replayed")).isNull();
+
+        logStep("Idempotency: the same request again is a replay");
+        ResponseEntity<String> again = createBooking(jwt, "SEDAN", start, end, key);
+        assertThat(again.getStatusCode().value()).isEqualTo(201);
+        assertThat(again.getHeaders().getFirst("Idempotent-Replayed")).isEqualTo("true");
+        assertThat(bookingId(again)).isEqualTo(bookingId(first));
+        Mockito.verify(storageService, Mockito.times(1)).uploadLicense(any(InputStream.class), anyLong(), anyString(), anyString());
+        assertThat(jdbc.queryForObject("""
+                SELECT COUNT(*) FROM bookings
+                WHERE type_id = 'SEDAN' AND time_range && tsrange(CAST(? AS timestamp), CAST(? AS timestamp), '[)')
+                """, Integer.class, start, end)).isEqualTo(1);
+
+        post(ADMIN_JWT, "/api/admin/bookings/{id}/reject", null, bookingId(first));
+    }
+
+    @Test
+    @DisplayName("Idempotency: the same key with a different payload is 422")
+    @TestDescription("Creates a booking with an Idempotency-Key, then sends another window under the same key and expects 422 IDEMPOTENCY_KEY_REUSED without an upload.")
+    void idempotent_create_rejects_reused_key() throws Exception {
+        String jwt = verifiedUserJwt("idem");
+        String key = "idem-" + UUID.randomUUID();
+        OffsetDateTime start = OffsetDateTime.of(2031, 5, 12, 9, 0, 0, 0, ZoneOffset.UTC);
+
+        ResponseEntity<String> first = createBooking(jwt, "SEDAN", start, start.plusDays(2), key);
+        assertThat(first.getStatusCode().value()).isEqualTo(201);
+
+        logStep("Idempotency: same key, different end");
+        ResponseEntity<String> reused = createBooking(jwt, "SEDAN", start, start.plusDays(3), key);
+        assertThat(reused.getStatusCode().value()).isEqualTo(422);
+        Map<String, Object> err = om.readValue(reused.getBody(), new TypeReference<>() {});
+        assertThat(err.get("error")).isEqualTo("IDEMPOTENCY_KEY_REUSED");
+        Mockito.verify(storageService, Mockito.times(1)).uploadLicense(any(InputStream.class), anyLong(), anyString(), anyString());
+
+        post(ADMIN_JWT, "/api/admin/bookings/{id}/reject", null, bookingId(first));
+    }
+
+    @Test
+    @DisplayName("Idempotency: a key whose create was rejected can be retried")
+    @TestDescription("Fills a VAN window so a keyed create gets 409, frees one car, and checks the same request under the same key then books (201, not a replay).")
+    void idempotent_create_retry_after_rejection() throws Exception {
+        String jwt = verifiedUserJwt("idem");
+        String key = "idem-" + UUID.randomUUID();
+        OffsetDateTime start = OffsetDateTime.of(2031, 5, 19, 9, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusDays(1);
+
+        logStep("Idempotency: VAN sold out for the window, keyed create is refused");
+        for (int i = 0; i < 4; i++) assertThat(reserve("VAN", start, end)).isTrue();
+        ResponseEntity<String> refused = createBooking(jwt, "VAN", start, end, key);
+        assertThat(refused.getStatusCode().value()).isEqualTo(409);
+        Mockito.verify(storageService, Mockito.never()).uploadLicense(any(InputStream.class), anyLong(), anyString(), anyString());
+
+        logStep("Idempotency: one car freed, the retry under the same key books");
+        tx.executeWithoutResult(s -> capacityLedger.release("VAN", start, end));
+        ResponseEntity<String> retried = createBooking(jwt, "VAN", start, end, key);
+        assertThat(retried.getStatusCode().value()).isEqualTo(201);
+        assertThat(retried.getHeaders().getFirst("Idempotent-Replayed")).isNull();
+
+        post(ADMIN_JWT, "/api/admin/bookings/{id}/reject", null, bookingId(retried));
+        tx.executeWithoutResult(s -> {
+            for (int i = 0; i < 3; i++) capacityLedger.release("VAN", start, end);
+        });
+        assertThat(ledgerUsed("VAN", start)).isZero();
+    }
+
+    // ==========================
+    // Two-phase booking scenarios
+    // ==========================
+    @Test
+    @DisplayName("Holds: a hold takes capacity and confirming it keeps it")
+    @TestDescription("Holds a VAN, checks it is HELD with an expiry and takes a ledger unit, then confirms it with a license and checks it is TO_CONFIRM with the same unit.")
+    void hold_then_confirm() throws Exception {
+        String jwt = verifiedUserJwt("hold");
+        OffsetDateTime start = OffsetDateTime.of(2031, 6, 2, 9, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusDays(1);
+
+        logStep("Holds: hold a VAN without a license");
+        ResponseEntity<String> held = hold(jwt, "VAN", start, end);
+        assertThat(held.getStatusCode().value()).isEqualTo(201);
+        Map<String, Object> json = om.readValue(held.getBody(), new TypeReference<>() {});
+        assertThat(json.get("status")).isEqualTo("HELD");
+        assertThat(json.get("holdExpiresAt")).isNotNull();
+        assertThat(json.get("licenseImageKey")).isNull();
+        String id = bookingId(held);
+        assertThat(ledgerUsed("VAN", start)).isEqualTo(1);
+
+        logStep("Holds: confirm with the driver license");
+        ResponseEntity<String> confirmed = confirmHold(jwt, id);
+        assertThat(confirmed.getStatusCode().value()).isEqualTo(200);
+        json = om.readValue(confirmed.getBody(), new TypeReference<>() {});
+        assertThat(json.get("status")).isEqualTo("TO_CONFIRM");
+        assertThat(json.get("holdExpiresAt")).isNull();
+        assertThat((String) json.get("licenseImageKey")).startsWith("s3://test-bucket/uploads/");
+        assertThat(ledgerUsed("VAN", start)).isEqualTo(1);
+
+        logStep("Holds: a second confirm is refused");
+        assertThat(confirmHold(jwt, id).getStatusCode().value()).isEqualTo(409);
+
+        post(ADMIN_JWT, "/api/admin/bookings/{id}/reject", null, id);
+        assertThat(ledgerUsed("VAN", start)).isZero();
+    }
+
+    @Test
+    @DisplayName("Holds: the sweep expires a due hold and gives its capacity back")
+    @TestDescription("Holds a VAN, moves its expiry into the past, runs the sweep and checks it is EXPIRED with its ledger unit released, and can no longer be confirmed.")
+    void hold_expiry_sweep_releases_capacity() throws Exception {
+        String jwt = verifiedUserJwt("hold");
+        OffsetDateTime start = OffsetDateTime.of(2031, 6, 9, 9, 30, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusHours(5);
+
+        ResponseEntity<String> held = hold(jwt, "VAN", start, end);
+        assertThat(held.getStatusCode().value()).isEqualTo(201);
+        String id = bookingId(held);
+        assertThat(ledgerUsed("VAN", start.withMinute(0))).isEqualTo(1);
+
+        logStep("Holds: expiry passes, the sweep runs");
+        expireHold(id);
+        bookingHolds.sweep();
+        assertThat(bookingStatus(id)).isEqualTo("EXPIRED");
+        for (OffsetDateTime slot = start.withMinute(0); slot.isBefore(end); slot = slot.plusHours(1)) {
+            assertThat(ledgerUsed("VAN", slot)).as("slot %s", slot).isZero();
+        }
+
+        logStep("Holds: an expired hold can't be confirmed");
+        ResponseEntity<String> late = confirmHold(jwt, id);
+        assertThat(late.getStatusCode().value()).isEqualTo(409);
+        Map<String, Object> err = om.readValue(late.getBody(), new TypeReference<>() {});
+        assertThat(err.get("error")).isEqualTo("HOLD_NOT_ACTIVE");
+        assertThat(err.get("status")).isEqualTo("EXPIRED");
+        Mockito.verify(storageService, Mockito.never()).uploadLicense(any(InputStream.class), anyLong(), anyString(), anyString());
+    }
+
+    @Test
+    @DisplayName("Holds: a hold expiring during the license upload is not confirmed")
+    @TestDescription("Expires the hold while its confirm is uploading the license; the confirm answers 409 HOLD_NOT_ACTIVE and deletes the upload, and the sweep then releases the capacity.")
+    void hold_expiring_during_confirm_upload() throws Exception {
+        String jwt = verifiedUserJwt("hold");
+        OffsetDateTime start = OffsetDateTime.of(2031, 6, 16, 9, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusDays(1);
+        String id = bookingId(hold(jwt, "VAN", start, end));
+
+        String uploadedKey = "s3://test-bucket/uploads/" + UUID.randomUUID() + "-late.jpg";
+        Mockito.when(storageService.uploadLicense(any(InputStream.class), anyLong(), anyString(), anyString())).thenAnswer(inv -> {
+            expireHold(id);
+            return uploadedKey;
+        });
+
+        logStep("Holds: the hold expires while the license uploads");
+        ResponseEntity<String> res = confirmHold(jwt, id);
+        assertThat(res.getStatusCode().value()).isEqualTo(409);
+        Map<String, Object> err = om.readValue(res.getBody(), new TypeReference<>() {});
+        assertThat(err.get("error")).isEqualTo("HOLD_NOT_ACTIVE");
+        Mockito.verify(storageService).deleteLicense(uploadedKey);
+        // Still HELD unless the scheduled sweep already got to it
+        assertThat(bookingStatus(id)).isIn("HELD", "EXPIRED");
+
+        bookingHolds.sweep();
+        assertThat(bookingStatus(id)).isEqualTo("EXPIRED");
+        assertThat(ledgerUsed("VAN", start)).isZero();
+    }
+
+    @Test
+    @DisplayName("Holds: confirms racing the expiry sweep each end up either confirmed or expired")
+    @TestDescription("Holds every SEDAN just before expiry, then confirms them all while sweeping; each hold is either TO_CONFIRM or EXPIRED, and the ledger counts exactly the confirmed ones.")
+    void hold_confirm_races_expiry_sweep() throws Exception {
+        String typeId = "SEDAN";
+        int total = jdbc.queryForObject("SELECT total_quantity FROM car_types WHERE id = ?", Integer.class, typeId);
+        OffsetDateTime start = OffsetDateTime.of(2031, 6, 23, 9, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusDays(1);
+        Map<String, String> holds = new java.util.LinkedHashMap<>();
+        for (int i = 0; i < total; i++) {
+            String jwt = verifiedUserJwt("race");
+            ResponseEntity<String> held = hold(jwt, typeId, start, end);
+            assertThat(held.getStatusCode().value()).isEqualTo(201);
+            holds.put(bookingId(held), jwt);
+        }
+        assertThat(ledgerUsed(typeId, start)).isEqualTo(total);
+
+        logStep("Holds: " + total + " holds expire in 300ms; confirm them all while the sweep runs");
+        OffsetDateTime expiry = OffsetDateTime.now(ZoneOffset.UTC).plus(Duration.ofMillis(300));
+        for (String id : holds.keySet()) {
+            jdbc.update("UPDATE bookings SET hold_expires_at = CAST(? AS timestamp) WHERE id = CAST(? AS uuid)", expiry, id);
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(total + 1);
+        CountDownLatch go = new CountDownLatch(1);
+        List<Future<ResponseEntity<String>>> confirms = new java.util.ArrayList<>();
+        holds.forEach((id, jwt) -> confirms.add(pool.submit(() -> {
+            go.await();
+            return confirmHold(jwt, id);
+        })));
+        Future<?> sweeper = pool.submit(() -> {
+            go.await();
+            long deadline = System.nanoTime() + Duration.ofSeconds(2).toNanos();
+            while (System.nanoTime() < deadline) {
+                bookingHolds.sweep();
+                sleep(20);
+            }
+            return null;
+        });
+        go.countDown();
+        int ok = 0;
+        for (Future<ResponseEntity<String>> f : confirms) {
+            int code = f.get(60, TimeUnit.SECONDS).getStatusCode().value();
+            assertThat(code).isIn(200, 409);
+            if (code == 200) ok++;
+        }
+        sweeper.get(60, TimeUnit.SECONDS);
+        pool.shutdown();
+        bookingHolds.sweep();
+
+        logStep("Holds: " + ok + " confirmed, the rest expired; the ledger agrees");
+        int confirmed = 0;
+        for (String id : holds.keySet()) {
+            String status = bookingStatus(id);
+            assertThat(status).isIn("TO_CONFIRM", "EXPIRED");
+            if ("TO_CONFIRM".equals(status)) confirmed++;
+        }
+        assertThat(confirmed).isEqualTo(ok);
+        assertThat(ledgerUsed(typeId, start)).isEqualTo(confirmed);
+
+        for (String id : holds.keySet()) {
+            if ("TO_CONFIRM".equals(bookingStatus(id))) post(ADMIN_JWT, "/api/admin/bookings/{id}/reject", null, id);
+        }
+        assertThat(ledgerUsed(typeId, start)).isZero();
+    }
+
+    // =============================
+    // Admin booking listing scenarios
+    // =============================
+    @Test
+    @DisplayName("Admin listing: keyset pages neither skip nor repeat rows sharing created_at")
+    @TestDescription("Inserts bookings of which most share one created_at, pages through them 3 at a time with X-Next-Cursor and checks every row comes exactly once, newest first.")
+    void admin_bookings_keyset_pagination_ties() throws Exception {
+        UserAccount user = verifiedUser("page");
+        OffsetDateTime start = OffsetDateTime.of(2032, 2, 2, 10, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusDays(1);
+        OffsetDateTime tie = OffsetDateTime.of(2030, 1, 1, 12, 0, 0, 123_456_000, ZoneOffset.UTC);
+        Set<UUID> inserted = new java.util.HashSet<>();
+        for (int i = 0; i < 8; i++) inserted.add(insertBooking(user.getId(), "SEDAN", "CANCELLED", start, end, null, tie));
+        inserted.add(insertBooking(user.getId(), "SEDAN", "CANCELLED", start, end, null, tie.plusSeconds(1)));
+        inserted.add(insertBooking(user.getId(), "SEDAN", "CANCELLED", start, end, null, tie.minusSeconds(1)));
+
+        logStep("Admin listing: page through " + inserted.size() + " rows, 3 per page");
+        List<UUID> seen = new java.util.ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            ResponseEntity<String> page = cursor == null
+                    ? adminGet("/api/admin/bookings?from={f}&to={t}&limit=3", start.toString(), end.toString())
+                    : adminGet("/api/admin/bookings?from={f}&to={t}&limit=3&cursor={c}", start.toString(), end.toString(), cursor);
+            assertThat(page.getStatusCode().value()).isEqualTo(200);
+            List<Map<String, Object>> items = om.readValue(page.getBody(), new TypeReference<>() {});
+            assertThat(items).hasSizeLessThanOrEqualTo(3);
+            items.forEach(it -> seen.add(UUID.fromString((String) it.get("bookingId"))));
+            cursor = page.getHeaders().getFirst("X-Next-Cursor");
+            pages++;
+        } while (cursor != null && pages < 10);
+
+        assertThat(cursor).as("last page has no cursor").isNull();
+        assertThat(pages).isEqualTo(4);
+        assertThat(seen).doesNotHaveDuplicates().containsExactlyInAnyOrderElementsOf(inserted);
+        // Newest first; rows sharing created_at by id descending
+        List<UUID> ties = seen.subList(1, 9);
+        assertThat(ties).isSortedAccordingTo(java.util.Comparator.<UUID, String>comparing(UUID::toString).reversed());
+        assertThat(jdbc.queryForObject("SELECT created_at FROM bookings WHERE id = ?", java.time.LocalDateTime.class, seen.get(0)))
+                .isEqualTo(tie.plusSeconds(1).toLocalDateTime());
+        assertThat(jdbc.queryForObject("SELECT created_at FROM bookings WHERE id = ?", java.time.LocalDateTime.class, seen.get(9)))
+                .isEqualTo(tie.minusSeconds(1).toLocalDateTime());
+    }
+
+    @Test
+    @DisplayName("Admin listing: a malformed cursor is 400 INVALID_CURSOR")
+    @TestDescription("Sends cursors that are not base64, lack the id part, or carry an unparseable timestamp or id, and expects 400 INVALID_CURSOR for each.")
+    void admin_bookings_malformed_cursor() {
+        String from = OffsetDateTime.of(2032, 2, 2, 0, 0, 0, 0, ZoneOffset.UTC).toString();
+        String to = OffsetDateTime.of(2032, 2, 3, 0, 0, 0, 0, ZoneOffset.UTC).toString();
+        java.util.Base64.Encoder b64 = java.util.Base64.getUrlEncoder().withoutPadding();
+        List<String> cursors = List.of(
+                "not*base64",
+                b64.encodeToString("2030-01-01T12:00Z".getBytes(StandardCharsets.UTF_8)),
+                b64.encodeToString(("yesterday|" + UUID.randomUUID()).getBytes(StandardCharsets.UTF_8)),
+                b64.encodeToString("2030-01-01T12:00Z|not-a-uuid".getBytes(StandardCharsets.UTF_8)));
+        for (String cursor : cursors) {
+            logStep("Admin listing: cursor " + cursor);
+            ResponseEntity<String> res = adminGet("/api/admin/bookings?from={f}&to={t}&cursor={c}", from, to, cursor);
+            assertThat(res.getStatusCode().value()).as(cursor).isEqualTo(400);
+            assertThat(res.getBody()).contains("INVALID_CURSOR");
+        }
+    }
+
+    // =====================
+    // Booking export scenarios
+    // =====================
+    @Test
+    @DisplayName("Admin export: CSV and NDJSON carry the bookings of the window, quoted and gzipped as asked")
+    @TestDescription("Inserts bookings with commas and quotes in their fields, exports their window as CSV, gzipped CSV and NDJSON, and checks header, row content, CSV quoting and that gzip decompresses to the plain CSV.")
+    void admin_bookings_export_csv_ndjson_gzip() throws Exception {
+        UserAccount user = verifiedUser("export");
+        user.setPhone("555 0100, ext. 2");
+        users.save(user);
+        OffsetDateTime start = OffsetDateTime.of(2032, 3, 3, 10, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = start.plusDays(1);
+        OffsetDateTime created = OffsetDateTime.of(2030, 2, 1, 8, 30, 0, 0, ZoneOffset.UTC);
+        UUID quoted = insertBooking(user.getId(), "SEDAN", "CANCELLED", start, end, "AB-1,\"X\"", created);
+        UUID plain = insertBooking(user.getId(), "VAN", "CANCELLED", start, end, null, created.plusMinutes(1));
+        insertBooking(user.getId(), "SEDAN", "CANCELLED", end.plusDays(1), end.plusDays(2), null, created);
+        String from = start.minusHours(1).toString(), to = end.toString();
+
+        logStep("Export: CSV");
+        ResponseEntity<String> csv = adminGet("/api/admin/bookings/export?from={f}&to={t}&format=csv", from, to);
+        assertThat(csv.getStatusCode().value()).isEqualTo(200);
+        assertThat(csv.getHeaders().getContentType().isCompatibleWith(MediaType.parseMediaType("text/csv"))).isTrue();
+        assertThat(csv.getHeaders().getFirst(HttpHeaders.CONTENT_DISPOSITION)).contains("bookings.csv");
+        List<String> lines = List.of(csv.getBody().split("\n"));
+        assertThat(lines).containsExactly(
+                "bookingId,status,userEmail,userPhone,typeId,start,end,licenseImageUrlOrKey,carRegistrationNumber,days,pricePerDay,total,createdAt",
+                quoted + ",CANCELLED," + user.getEmail() + ",\"555 0100, ext. 2\",SEDAN,2032-03-03T10:00Z,2032-03-04T10:00Z,"
+                        + "s3://test-bucket/uploads/" + quoted + "-mock.jpg,\"AB-1,\"\"X\"\"\",1,50.00,50.00,2030-02-01T08:30Z",
+                plain + ",CANCELLED," + user.getEmail() + ",\"555 0100, ext. 2\",VAN,2032-03-03T10:00Z,2032-03-04T10:00Z,"
+                        + "s3://test-bucket/uploads/" + plain + "-mock.jpg,,1,50.00,50.00,2030-02-01T08:31Z");
+
+        logStep("Export: gzipped CSV decompresses to the same body");
+        // Plain JDK client: it leaves Content-Encoding alone instead of decoding transparently
+        java.net.http.HttpResponse<byte[]> gz = java.net.http.HttpClient.newHttpClient().send(
+                java.net.http.HttpRequest.newBuilder(java.net.URI.create(baseUrl() + "/api/admin/bookings/export?from="
+                                + java.net.URLEncoder.encode(from, StandardCharsets.UTF_8) + "&to=" + java.net.URLEncoder.encode(to, StandardCharsets.UTF_8)
+                                + "&format=csv&gzip=true"))
+                        .header(HttpHeaders.AUTHORIZATION, "Bearer " + ADMIN_JWT)
+                        .build(),
+                java.net.http.HttpResponse.BodyHandlers.ofByteArray());
+        assertThat(gz.statusCode()).isEqualTo(200);
+        assertThat(gz.headers().firstValue(HttpHeaders.CONTENT_ENCODING)).contains("gzip");
+        try (InputStream in = new java.util.zip.GZIPInputStream(new java.io.ByteArrayInputStream(gz.body()))) {
+            assertThat(new String(in.readAllBytes(), StandardCharsets.UTF_8)).isEqualTo(csv.getBody());
+        }
+
+        logStep("Export: NDJSON");
+        ResponseEntity<String> ndjson = adminGet("/api/admin/bookings/export?from={f}&to={t}&format=ndjson", from, to);
+        assertThat(ndjson.getStatusCode().value()).isEqualTo(200);
+        assertThat(ndjson.getHeaders().getContentType().isCompatibleWith(MediaType.parseMediaType("application/x-ndjson"))).isTrue();
+        String[] records = ndjson.getBody().split("\n");
+        assertThat(records).hasSize(2);
+        Map<String, Object> first = om.readValue(records[0], new TypeReference<>() {});
+        assertThat(first).containsEntry("bookingId", quoted.toString())
+                .containsEntry("status", "CANCELLED")
+                .containsEntry("userEmail", user.getEmail())
+                .containsEntry("userPhone", "555 0100, ext. 2")
+                .containsEntry("typeId", "SEDAN")
+                .containsEntry("start", "2032-03-03T10:00Z")
+                .containsEntry("end", "2032-03-04T10:00Z")
+                .containsEntry("carRegistrationNumber", "AB-1,\"X\"")
+                .containsEntry("days", 1)
+                .containsEntry("createdAt", "2030-02-01T08:30Z");
+        assertThat(((Number) first.get("total")).doubleValue()).isEqualTo(50.0);
+        Map<String, Object> second = om.readValue(records[1], new TypeReference<>() {});
+        assertThat(second).containsEntry("bookingId", plain.toString()).containsEntry("carRegistrationNumber", null);
+
+        logStep("Export: unknown format is 400");
+        assertThat(adminGet("/api/admin/bookings/export?from={f}&to={t}&format=xml", from, to).getStatusCode().value()).isEqualTo(400);
+    }
+
+    // ===========================
+    // Utilization rollup scenarios
+    // ===========================
+    @Test
+    @DisplayName("Rollups: stats and the daily report agree with a booking before and after a rebuild")
+    @TestDescription("Books an SUV over three UTC days, checks /reports/daily splits its hours and revenue per day and /stats sums them including partial edge days, then drops the rollups, rebuilds them and expects the same figures; a reject removes them.")
+    void rollups_rebuild_matches_stats_and_daily_report() throws Exception {
+        String typeId = "SUV";
+        OffsetDateTime start = OffsetDateTime.of(2032, 4, 10, 18, 0, 0, 0, ZoneOffset.UTC);
+        OffsetDateTime end = OffsetDateTime.of(2032, 4, 12, 6, 0, 0, 0, ZoneOffset.UTC);
+        ResponseEntity<String> created = createBooking(verifiedUserJwt("rollup"), typeId, start, end, null);
+        assertThat(created.getStatusCode().value()).isEqualTo(201);
+        String id = bookingId(created);
+        Map<String, Object> booking = om.readValue(created.getBody(), new TypeReference<>() {});
+        double total = ((Number) booking.get("estimatedTotal")).doubleValue();
+        int quantity = jdbc.queryForObject("SELECT total_quantity FROM car_types WHERE id = ?", Integer.class, typeId);
+
+        logStep("Rollups: daily report from the incrementally applied rollups");
+        assertDaily(dailyReport(typeId), total, quantity);
+
+        logStep("Rollups: stats over a window cutting the first and last day");
+        assertThat(bookedHours(typeId, "2032-04-10T12:00:00Z", "2032-04-12T12:00:00Z")).isEqualTo(36.0);
+        assertThat(bookedHours(typeId, "2032-04-11T00:00:00Z", "2032-04-12T00:00:00Z")).isEqualTo(24.0);
+        assertThat(bookedHours(typeId, "2032-04-10T20:00:00Z", "2032-04-10T22:00:00Z")).isEqualTo(2.0);
+
+        logStep("Rollups: drop them, rebuild from bookings, expect the same figures");
+        jdbc.update("DELETE FROM booking_daily_rollup WHERE type_id = ? AND day >= ? AND day < ?",
+                typeId, java.time.LocalDate.of(2032, 4, 10), java.time.LocalDate.of(2032, 4, 13));
+        assertThat(dailyReport(typeId)).isEmpty();
+        ResponseEntity<String> rebuilt = post(ADMIN_JWT, "/api/admin/reports/rollups/rebuild", null);
+        assertThat(rebuilt.getStatusCode().value()).isEqualTo(200);
+        Map<String, Object> rows = om.readValue(rebuilt.getBody(), new TypeReference<>() {});
+        assertThat((Integer) rows.get("rows")).isGreaterThanOrEqualTo(3);
+        assertDaily(dailyReport(typeId), total, quantity);
+        assertThat(bookedHours(typeId, "2032-04-10T12:00:00Z", "2032-04-12T12:00:00Z")).isEqualTo(36.0);
+
+        logStep("Rollups: a rejected booking leaves the report, before and after a rebuild");
+        post(ADMIN_JWT, "/api/admin/bookings/{id}/reject", null, id);
+        assertThat(dailyReport(typeId)).isEmpty();
+        assertThat(bookedHours(typeId, "2032-04-10T12:00:00Z", "2032-04-12T12:00:00Z")).isZero();
+        post(ADMIN_JWT, "/api/admin/reports/rollups/rebuild", null);
+        assertThat(dailyReport(typeId)).isEmpty();
+    }
+
+    // /reports/daily rows of the type for 2032-04-10..12
+    private List<Map<String, Object>> dailyReport(String typeId) throws Exception {
+        ResponseEntity<String> res = adminGet("/api/admin/reports/daily?from={f}&to={t}", "2032-04-10", "2032-04-13");
+        assertThat(res.getStatusCode().value()).isEqualTo(200);
+        List<Map<String, Object>> days = om.readValue(res.getBody(), new TypeReference<>() {});
+        return days.stream().filter(d -> typeId.equals(d.get("typeId"))).toList();
+    }
+
+    // 18:00 on the 10th to 06:00 on the 12th: 6h, 24h and 6h of 36h
+    private static void assertDaily(List<Map<String, Object>> days, double total, int quantity) {
+        assertThat(days).extracting(d -> d.get("day")).containsExactly("2032-04-10", "2032-04-11", "2032-04-12");
+        double[] hours = {6, 24, 6};
+        for (int i = 0; i < hours.length; i++) {
+            Map<String, Object> d = days.get(i);
+            assertThat(((Number) d.get("bookings")).longValue()).isEqualTo(1);
+            assertThat(((Number) d.get("bookedHours")).doubleValue()).isEqualTo(hours[i]);
+            assertThat(((Number) d.get("revenue")).doubleValue()).isCloseTo(total * hours[i] / 36, org.assertj.core.data.Offset.offset(0.01));
+            assertThat(((Number) d.get("utilizationPercent")).doubleValue())
+                    .isCloseTo(hours[i] / (24.0 * quantity) * 100.0, org.assertj.core.data.Offset.offset(1e-9));
+        }
+    }
+
+    // Past plus future booked hours of the type from /stats
+    private double bookedHours(String typeId, String from, String to) throws Exception {
+        ResponseEntity<String> res = adminGet("/api/admin/stats?from={f}&to={t}", from, to);
+        assertThat(res.getStatusCode().value()).isEqualTo(200);
+        List<Map<String, Object>> stats = om.readValue(res.getBody(), new TypeReference<>() {});
+        Map<String, Object> s = stats.stream().filter(m -> typeId.equals(m.get("typeId"))).findFirst().orElseThrow();
+        return ((Number) s.get("hoursBookedPast")).doubleValue() + ((Number) s.get("hoursBookedFuture")).doubleValue();
+    }
+
+    // ======================
+    // Email outbox scenario
+    // ======================
+    @Test
+    @DisplayName("Email outbox: an email is relayed only if its transaction commits")
+    @TestDescription("Enqueues one email in a rolled-back transaction and one in a committed one; only the committed one reaches the outbox and is relayed to MailHog.")
+    void outbox_sends_only_committed_emails() {
+        String rolledBack = "rollback+" + UUID.randomUUID() + "@example.com";
+        String committed = "commit+" + UUID.randomUUID() + "@example.com";
+
+        logStep("Outbox: enqueue in a transaction that rolls back");
+        tx.executeWithoutResult(s -> {
+            emailOutbox.enqueue(new EmailOutbox.Message(rolledBack, "Never sent", "<p>rolled back</p>"));
+            s.setRollbackOnly();
+        });
+        logStep("Outbox: enqueue in a transaction that commits");
+        tx.executeWithoutResult(s -> emailOutbox.enqueue(new EmailOutbox.Message(committed, "Sent", "<p>committed</p>")));
+
+        assertThat(jdbc.queryForObject("SELECT COUNT(*) FROM email_outbox WHERE recipient = ?", Integer.class, rolledBack)).isZero();
+        logStep("Outbox: the relay marks the committed email SENT");
+        long deadline = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+        String status;
+        do {
+            sleep(200);
+            status = jdbc.queryForObject("SELECT status FROM email_outbox WHERE recipient = ?", String.class, committed);
+        } while (!"SENT".equals(status) && System.nanoTime() < deadline);
+        assertThat(status).isEqualTo("SENT");
+        assertThat(jdbc.queryForObject("SELECT attempts FROM email_outbox WHERE recipient = ?", Integer.class, committed)).isEqualTo(1);
+    }
 
     // ===================================
     // Booking validation & auth scenarios
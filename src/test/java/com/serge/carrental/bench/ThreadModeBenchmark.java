@@ -0,0 +1,99 @@
+package com.serge.carrental.bench;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Closed-loop load generator for comparing the platform-thread and virtual-thread modes of a running instance
+ * (see README, "Virtual threads"). Each of {@code concurrency} clients repeatedly calls the public read endpoints
+ * with random windows: {@code /api/cars/search} (Redis, Postgres) and {@code /api/cars/types/{id}} with
+ * {@code bypassCache=true} (Postgres). Prints throughput, p50/p99/max latency and the error count.
+ * <p>
+ * Not a unit test; run against an app started with a fixed heap:
+ * {@code java -cp target/test-classes com.serge.carrental.bench.ThreadModeBenchmark [baseUrl] [concurrency] [seconds]}
+ */
+public class ThreadModeBenchmark {
+    private static final Pattern TYPE_ID = Pattern.compile("\"id\"\\s*:\\s*\"([^\"]+)\"");
+
+    public static void main(String[] args) throws Exception {
+        String baseUrl = args.length > 0 ? args[0] : "http://localhost:8080";
+        int concurrency = args.length > 1 ? Integer.parseInt(args[1]) : 400;
+        Duration duration = Duration.ofSeconds(args.length > 2 ? Long.parseLong(args[2]) : 60);
+        Duration warmup = Duration.ofSeconds(10);
+
+        HttpClient http = HttpClient.newBuilder()
+                .executor(Executors.newVirtualThreadPerTaskExecutor())
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        List<String> typeIds = new ArrayList<>();
+        Matcher m = TYPE_ID.matcher(get(http, baseUrl + "/api/cars/types").body());
+        while (m.find()) typeIds.add(m.group(1));
+        if (typeIds.isEmpty()) throw new IllegalStateException("no car types at " + baseUrl);
+
+        System.out.printf("target=%s concurrency=%d duration=%ds warmup=%ds%n",
+                baseUrl, concurrency, duration.toSeconds(), warmup.toSeconds());
+        run(http, baseUrl, typeIds, concurrency, warmup);
+        Result r = run(http, baseUrl, typeIds, concurrency, duration);
+        System.out.printf("requests=%d errors=%d throughput=%.1f req/s p50=%.1fms p99=%.1fms max=%.1fms%n",
+                r.latenciesNanos.length, r.errors, r.latenciesNanos.length / (double) duration.toSeconds(),
+                percentile(r.latenciesNanos, 0.50), percentile(r.latenciesNanos, 0.99), percentile(r.latenciesNanos, 1.0));
+    }
+
+    private record Result(long[] latenciesNanos, long errors) {}
+
+    private static Result run(HttpClient http, String baseUrl, List<String> typeIds, int concurrency, Duration duration)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + duration.toNanos();
+        Queue<long[]> perClient = new ConcurrentLinkedQueue<>();
+        AtomicLong errors = new AtomicLong();
+        try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < concurrency; c++) {
+                clients.execute(() -> {
+                    long[] samples = new long[1024];
+                    int n = 0;
+                    ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        OffsetDateTime from = OffsetDateTime.now(ZoneOffset.UTC).plusDays(rnd.nextInt(1, 60)).plusHours(rnd.nextInt(24));
+                        OffsetDateTime to = from.plusDays(rnd.nextInt(1, 8));
+                        String url = rnd.nextBoolean()
+                                ? baseUrl + "/api/cars/search?from=" + from + "&to=" + to
+                                : baseUrl + "/api/cars/types/" + typeIds.get(rnd.nextInt(typeIds.size())) + "?from=" + from + "&to=" + to + "&bypassCache=true";
+                        long started = System.nanoTime();
+                        try {
+                            if (get(http, url.replace("+", "%2B")).statusCode() != 200) errors.incrementAndGet();
+                        } catch (Exception e) {
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        if (n == samples.length) samples = Arrays.copyOf(samples, n * 2);
+                        samples[n++] = System.nanoTime() - started;
+                    }
+                    perClient.add(Arrays.copyOf(samples, n));
+                });
+            }
+        }
+        long[] all = perClient.stream().flatMapToLong(Arrays::stream).sorted().toArray();
+        return new Result(all, errors.get());
+    }
+
+    private static HttpResponse<String> get(HttpClient http, String url) throws Exception {
+        return http.send(HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30)).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        int i = (int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1);
+        return sorted[Math.max(0, i)] / 1e6;
+    }
+}
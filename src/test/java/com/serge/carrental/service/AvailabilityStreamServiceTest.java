@@ -0,0 +1,158 @@
+package com.serge.carrental.service;
+
+import com.serge.carrental.domain.CarType;
+import com.serge.carrental.repo.CarTypeRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+
+class AvailabilityStreamServiceTest {
+    private static final OffsetDateTime FROM = OffsetDateTime.of(2030, 3, 1, 10, 0, 0, 0, ZoneOffset.UTC);
+    private static final OffsetDateTime TO = FROM.plusDays(2);
+
+    private final AvailabilityService availability = Mockito.mock(AvailabilityService.class);
+    private final CarTypeRepository carTypes = Mockito.mock(CarTypeRepository.class);
+    private final Map<String, AtomicInteger> available = new HashMap<>();
+    private final BlockingQueue<Map<String, Object>> sent = new LinkedBlockingQueue<>();
+    private AvailabilityStreamService service;
+
+    @BeforeEach
+    void setUp() {
+        List<CarType> types = List.of(type("SEDAN"), type("VAN"));
+        Mockito.when(carTypes.findAll()).thenReturn(types);
+        types.forEach(t -> available.put(t.getId(), new AtomicInteger(3)));
+        Mockito.when(availability.availabilityForType(any(), eq(FROM), eq(TO), anyBoolean()))
+                .thenAnswer(inv -> available.get(inv.<CarType>getArgument(0).getId()).get());
+        service = new AvailabilityStreamService(availability, carTypes) {
+            @Override
+            SseEmitter newEmitter() {
+                return new RecordingEmitter();
+            }
+        };
+        ReflectionTestUtils.setField(service, "maxSubscribers", 10);
+        ReflectionTestUtils.setField(service, "timeout", Duration.ofMinutes(1));
+        ReflectionTestUtils.setField(service, "debounceMs", 100L);
+        ReflectionTestUtils.setField(service, "heartbeatMs", 60_000L);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+    }
+
+    @Test
+    @DisplayName("Subscribers get a snapshot, then one debounced event with only the types that changed")
+    void snapshot_then_debounced_delta() throws Exception {
+        service.subscribe(List.of(), FROM, TO);
+        Map<String, Object> snapshot = next();
+        assertThat(snapshot.get("event")).isEqualTo("snapshot");
+        assertThat(snapshot.get("available")).isEqualTo(Map.of("SEDAN", 3, "VAN", 3));
+
+        // Three changes within the debounce delay: SEDAN goes down, VAN is notified but unchanged
+        available.get("SEDAN").set(2);
+        long from = FROM.toInstant().toEpochMilli(), to = TO.toInstant().toEpochMilli();
+        service.onAvailabilityChanged(new AvailabilityChangedEvent("SEDAN", from, to));
+        service.onAvailabilityChanged(new AvailabilityChangedEvent("VAN", from, to));
+        service.onAvailabilityChanged(new AvailabilityChangedEvent("SEDAN", from, to));
+
+        Map<String, Object> delta = next();
+        assertThat(delta.get("event")).isEqualTo("availability");
+        assertThat(delta.get("available")).isEqualTo(Map.of("SEDAN", 2));
+        assertThat(sent.poll(500, TimeUnit.MILLISECONDS)).as("no further event").isNull();
+        // Snapshot (2 types) plus one lookup per dirty type of the batch
+        Mockito.verify(availability, Mockito.times(4)).availabilityForType(any(), eq(FROM), eq(TO), anyBoolean());
+    }
+
+    @Test
+    @DisplayName("Changes outside a subscriber's window push nothing")
+    void changes_outside_window_are_ignored() throws Exception {
+        service.subscribe(List.of("SEDAN"), FROM, TO);
+        assertThat(next().get("event")).isEqualTo("snapshot");
+
+        available.get("SEDAN").set(0);
+        long after = TO.toInstant().toEpochMilli();
+        service.onAvailabilityChanged(new AvailabilityChangedEvent("SEDAN", after, after + 3_600_000));
+
+        assertThat(sent.poll(500, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    @Test
+    @DisplayName("Heartbeats keep flowing while an availability lookup is blocked")
+    void heartbeat_not_blocked_by_lookup() throws Exception {
+        ReflectionTestUtils.setField(service, "heartbeatMs", 50L);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.when(availability.availabilityForType(any(), eq(FROM), eq(TO), anyBoolean())).thenAnswer(inv -> {
+            release.await();
+            return 1;
+        });
+        service.subscribe(List.of("SEDAN"), FROM, TO);
+        try {
+            assertThat(next().get("event")).isEqualTo("keep-alive");
+        } finally {
+            release.countDown();
+        }
+        Map<String, Object> event;
+        do {
+            event = next();
+        } while ("keep-alive".equals(event.get("event")));
+        assertThat(event.get("event")).isEqualTo("snapshot");
+        assertThat(event.get("available")).isEqualTo(Map.of("SEDAN", 1));
+    }
+
+    private Map<String, Object> next() throws InterruptedException {
+        Map<String, Object> event = sent.poll(5, TimeUnit.SECONDS);
+        assertThat(event).as("event sent").isNotNull();
+        return event;
+    }
+
+    private static CarType type(String id) {
+        CarType t = new CarType();
+        t.setId(id);
+        t.setTotalQuantity(3);
+        return t;
+    }
+
+    // Records each event as its name plus the data map, or "keep-alive" for heartbeat comments
+    private final class RecordingEmitter extends SseEmitter {
+        @Override
+        @SuppressWarnings("unchecked")
+        public void send(SseEventBuilder builder) {
+            Map<String, Object> event = new HashMap<>();
+            StringBuilder text = new StringBuilder();
+            for (ResponseBodyEmitter.DataWithMediaType d : builder.build()) {
+                if (d.getData() instanceof Map<?, ?> data) event.putAll((Map<String, Object>) data);
+                else if (d.getData() instanceof String part) text.append(part);
+            }
+            event.put("event", eventName(text.toString()));
+            sent.add(event);
+        }
+    }
+
+    private static String eventName(String text) {
+        if (text.startsWith(":keep-alive")) return "keep-alive";
+        for (String line : text.split("\n")) {
+            if (line.startsWith("event:")) return line.substring("event:".length());
+        }
+        return null;
+    }
+}
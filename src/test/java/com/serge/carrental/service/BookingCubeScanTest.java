@@ -0,0 +1,66 @@
+package com.serge.carrental.service;
+
+import com.serge.carrental.domain.BookingStatus;
+import com.serge.carrental.service.BookingCube.Dimension;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class BookingCubeScanTest {
+    // 2024-01-01, a Monday, in epoch minutes
+    private static final int MONDAY = 28_401_120;
+
+    @Test
+    @DisplayName("Minutes per hour of the week match a minute-by-minute walk, across week wraps and partial hours")
+    void spread_matches_minute_by_minute_walk() {
+        Random rnd = new Random(7);
+        for (int n = 0; n < 1000; n++) {
+            int from = MONDAY + rnd.nextInt(60 * 24 * 30);
+            int to = from + 1 + rnd.nextInt(60 * 24 * 40);
+            long[] expected = new long[168];
+            for (int m = from; m < to; m++) expected[BookingCubeScan.hourOfWeek(Math.floorDiv(m, 60))]++;
+
+            assertThat(BookingCubeScan.minutesPerHourOfWeek(from, to)).as("[%d, %d)", from, to).containsExactly(expected);
+        }
+    }
+
+    @Test
+    @DisplayName("Parallel scan groups bookings like a sequential count, with window and status filters")
+    void scan_groups_and_filters() {
+        int rows = 200_000;
+        BookingCube.Columns c = new BookingCube.Columns(rows);
+        Random rnd = new Random(11);
+        for (int i = 0; i < rows; i++) {
+            c.start[i] = MONDAY + rnd.nextInt(60 * 24 * 60);
+            c.end[i] = c.start[i] + 60 + rnd.nextInt(60 * 24 * 5);
+            c.created[i] = c.start[i] - rnd.nextInt(60 * 24 * 20);
+            c.type[i] = (byte) rnd.nextInt(3);
+            c.status[i] = (byte) rnd.nextInt(BookingStatus.values().length);
+            c.cents[i] = 100 + rnd.nextInt(10_000);
+        }
+        int from = MONDAY + 60 * 24 * 10, to = MONDAY + 60 * 24 * 40;
+        int booked = 1 << BookingStatus.BOOKED.ordinal();
+        BookingCubeScan.Plan plan = new BookingCubeScan.Plan(List.of(Dimension.TYPE, Dimension.WEEKDAY), false, 3, null, booked, from, to);
+
+        Map<Long, long[]> expected = new TreeMap<>();
+        for (int i = 0; i < rows; i++) {
+            if (c.status[i] != BookingStatus.BOOKED.ordinal() || c.start[i] >= to || c.end[i] <= from) continue;
+            long key = c.type[i] * 7L + BookingCubeScan.weekday(Math.floorDiv(c.start[i], 1440));
+            long[] m = expected.computeIfAbsent(key, k -> new long[4]);
+            m[BookingCubeScan.COUNT]++;
+            m[BookingCubeScan.MINUTES] += Math.min(c.end[i], to) - Math.max(c.start[i], from);
+            m[BookingCubeScan.CENTS] += c.cents[i];
+            m[BookingCubeScan.LEAD_MINUTES] += c.start[i] - c.created[i];
+        }
+
+        Map<Long, long[]> actual = new TreeMap<>();
+        new ForkJoinPool(4).invoke(new BookingCubeScan(c, plan, 0, rows, 1 << 12)).forEach(actual::put);
+
+        assertThat(actual.keySet()).isEqualTo(expected.keySet());
+        expected.forEach((k, m) -> assertThat(actual.get(k)).as("group %d", k).containsExactly(m));
+    }
+}
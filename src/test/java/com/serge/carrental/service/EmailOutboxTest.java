@@ -0,0 +1,143 @@
+package com.serge.carrental.service;
+
+import com.serge.carrental.domain.OutboxEmail;
+import com.serge.carrental.repo.OutboxEmailRepository;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.mail.MailSendException;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+
+class EmailOutboxTest {
+    private final OutboxEmailRepository repository = Mockito.mock(OutboxEmailRepository.class);
+    private final EmailService emailService = Mockito.mock(EmailService.class);
+    private final TransactionTemplate tx = Mockito.mock(TransactionTemplate.class);
+    private final List<OutboxEmail> rows = new ArrayList<>();
+    private EmailOutbox outbox;
+
+    @BeforeEach
+    void setUp() {
+        // The relay claims every PENDING row that is due, as claimDue does
+        Mockito.when(repository.claimDue(any(), anyInt())).thenAnswer(inv -> {
+            OffsetDateTime now = inv.getArgument(0);
+            return rows.stream()
+                    .filter(e -> e.getStatus() == OutboxEmail.Status.PENDING && !e.getNextAttemptAt().isAfter(now))
+                    .toList();
+        });
+        Mockito.when(tx.execute(any())).thenAnswer(inv -> inv.<TransactionCallback<?>>getArgument(0).doInTransaction(null));
+        Mockito.when(emailService.compose(anyString(), anyString(), anyString())).thenAnswer(inv -> Mockito.mock(MimeMessage.class));
+        outbox = new EmailOutbox(repository, emailService, tx);
+        ReflectionTestUtils.setField(outbox, "batchSize", 50);
+        ReflectionTestUtils.setField(outbox, "maxAttempts", 3);
+        ReflectionTestUtils.setField(outbox, "backoff", Duration.ofSeconds(5));
+        ReflectionTestUtils.setField(outbox, "maxBackoff", Duration.ofSeconds(8));
+    }
+
+    @Test
+    @DisplayName("A failing send is retried with capped exponential backoff, then marked FAILED")
+    void failing_send_backs_off_then_gives_up() {
+        failEverySend();
+        OutboxEmail e = pending("a@example.com");
+
+        OffsetDateTime before = now();
+        outbox.relay();
+        assertThat(e.getAttempts()).isEqualTo(1);
+        assertThat(e.getStatus()).isEqualTo(OutboxEmail.Status.PENDING);
+        assertThat(e.getLastError()).isEqualTo("smtp down");
+        assertThat(e.getNextAttemptAt()).isBetween(before.plusSeconds(5), now().plusSeconds(5));
+
+        // Not due yet: the relay leaves it alone
+        outbox.relay();
+        assertThat(e.getAttempts()).isEqualTo(1);
+
+        e.setNextAttemptAt(now());
+        before = now();
+        outbox.relay();
+        assertThat(e.getAttempts()).isEqualTo(2);
+        // 10s doubled backoff, capped at EMAIL_RELAY_MAX_BACKOFF
+        assertThat(e.getNextAttemptAt()).isBetween(before.plusSeconds(8), now().plusSeconds(8));
+
+        e.setNextAttemptAt(now());
+        OffsetDateTime lastDue = e.getNextAttemptAt();
+        outbox.relay();
+        assertThat(e.getAttempts()).isEqualTo(3);
+        assertThat(e.getStatus()).isEqualTo(OutboxEmail.Status.FAILED);
+        assertThat(e.getNextAttemptAt()).isEqualTo(lastDue);
+        assertThat(e.getSentAt()).isNull();
+
+        outbox.relay();
+        assertThat(e.getAttempts()).as("FAILED is never retried").isEqualTo(3);
+    }
+
+    @Test
+    @DisplayName("Only the failed emails of a batch are retried; the others are marked SENT")
+    void partial_batch_failure() {
+        OutboxEmail ok = pending("ok@example.com");
+        OutboxEmail bad = pending("bad@example.com");
+        Map<MimeMessage, OutboxEmail> composed = new IdentityHashMap<>();
+        Mockito.when(emailService.compose(anyString(), anyString(), anyString())).thenAnswer(inv -> {
+            MimeMessage m = Mockito.mock(MimeMessage.class);
+            composed.put(m, inv.<String>getArgument(0).equals(ok.getRecipient()) ? ok : bad);
+            return m;
+        });
+        Mockito.when(emailService.sendAll(anyList())).thenAnswer(inv -> {
+            Map<MimeMessage, Exception> failed = new IdentityHashMap<>();
+            for (MimeMessage m : inv.<List<MimeMessage>>getArgument(0)) {
+                if (composed.get(m) == bad) failed.put(m, new MailSendException("mailbox unavailable"));
+            }
+            return failed;
+        });
+
+        outbox.relay();
+
+        assertThat(ok.getStatus()).isEqualTo(OutboxEmail.Status.SENT);
+        assertThat(ok.getSentAt()).isNotNull();
+        assertThat(ok.getAttempts()).isEqualTo(1);
+        assertThat(bad.getStatus()).isEqualTo(OutboxEmail.Status.PENDING);
+        assertThat(bad.getAttempts()).isEqualTo(1);
+        assertThat(bad.getLastError()).isEqualTo("mailbox unavailable");
+        Mockito.verify(repository).saveAll(List.of(ok, bad));
+    }
+
+    private void failEverySend() {
+        Mockito.when(emailService.sendAll(anyList())).thenAnswer(inv -> {
+            Map<MimeMessage, Exception> failed = new IdentityHashMap<>();
+            inv.<List<MimeMessage>>getArgument(0).forEach(m -> failed.put(m, new MailSendException("smtp down")));
+            return failed;
+        });
+    }
+
+    private OutboxEmail pending(String to) {
+        OutboxEmail e = OutboxEmail.builder()
+                .id(UUID.randomUUID())
+                .recipient(to)
+                .subject("Booking received")
+                .html("<p>hi</p>")
+                .status(OutboxEmail.Status.PENDING)
+                .attempts(0)
+                .nextAttemptAt(now())
+                .createdAt(now())
+                .build();
+        rows.add(e);
+        return e;
+    }
+
+    private static OffsetDateTime now() {
+        return OffsetDateTime.now(ZoneOffset.UTC);
+    }
+}
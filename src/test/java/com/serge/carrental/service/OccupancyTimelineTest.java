@@ -0,0 +1,67 @@
+package com.serge.carrental.service;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class OccupancyTimelineTest {
+
+    @Test
+    @DisplayName("Peak counts only bookings that are active at the same instant")
+    void peak_counts_concurrent_bookings_only() {
+        OccupancyTimeline t = new OccupancyTimeline();
+        t.add(0, 10, 1);
+        t.add(20, 30, 1);
+        t.add(5, 25, 1);
+
+        assertThat(t.peak(0, 40)).isEqualTo(2);
+        assertThat(t.peak(10, 20)).isEqualTo(1);
+        assertThat(t.peak(30, 40)).isEqualTo(0);
+        // half-open windows: a booking ending at 10 does not overlap [10, 12)
+        assertThat(t.peak(10, 12)).isEqualTo(1);
+        assertThat(t.peak(-5, 0)).isEqualTo(0);
+    }
+
+    @Test
+    @DisplayName("Per-bucket peaks match independent peak queries")
+    void peaks_match_single_window_queries() {
+        OccupancyTimeline t = new OccupancyTimeline();
+        t.add(5, 25, 1);
+        t.add(10, 20, 1);
+        t.add(20, 40, 1);
+        t.add(40, 45, 2);
+
+        int[] peaks = t.peaks(0, 10, 6);
+        for (int b = 0; b < peaks.length; b++) {
+            assertThat(peaks[b]).as("bucket %d", b).isEqualTo(t.peak(b * 10L, b * 10L + 10));
+        }
+        assertThat(peaks).containsExactly(1, 2, 2, 1, 2, 0);
+    }
+
+    @Test
+    @DisplayName("Removing bookings restores levels and compacts breakpoints")
+    void remove_restores_levels_and_compacts() {
+        OccupancyTimeline t = new OccupancyTimeline();
+        t.add(0, 10, 1);
+        t.add(5, 15, 1);
+        t.add(5, 15, -1);
+        t.add(0, 10, -1);
+
+        assertThat(t.peak(0, 100)).isEqualTo(0);
+        assertThat(t.breakpoints()).isZero();
+    }
+
+    @Test
+    @DisplayName("Timeline grows beyond its initial capacity")
+    void grows_beyond_initial_capacity() {
+        OccupancyTimeline t = new OccupancyTimeline();
+        for (int i = 0; i < 1000; i++) {
+            t.add(i * 10L, i * 10L + 5, 1);
+        }
+        t.add(0, 10_000, 1);
+
+        assertThat(t.peak(0, 10_000)).isEqualTo(2);
+        assertThat(t.peak(5, 10)).isEqualTo(1);
+    }
+}